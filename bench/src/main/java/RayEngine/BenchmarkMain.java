@@ -0,0 +1,22 @@
+package RayEngine;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*corre los benchmarks siempre con el profiler de GC, para que junto al tiempo de cada operación se vea cuanta
+memoria asigna (gc.alloc.rate.norm). Acepta los mismos argumentos que el main de JMH, por ejemplo un filtro
+con el nombre de los benchmarks o -p rays=1920 para fijar un parametro*/
+public final class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,78 @@
+package RayEngine;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*update y calculo de distancia de todas las entidades (EntityStore.update) de un frame, y la busqueda
+de los pares de entidades cercanas con el SpatialGrid. wave agrega y elimina una oleada de proyectiles y collide
+mueve a todas las entidades contra las paredes del mapa*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityBenchmark {
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int entityCount;
+
+    private static final int MAP_SIZE = 256;
+    private static final int WAVE_SIZE = 5000;
+
+    private Player player;
+    private EntityStore store;
+    private Entity[] entities;
+    private Entity[] wave;
+    private double step = 3; //cambia de signo en cada llamada, asi las entidades van y vienen en vez de quedarse pegadas
+    private int pairCount;
+    private final SpatialGrid.PairVisitor countPairs = (a, b) -> pairCount++;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map map = Fixtures.quietMap(Fixtures.randomGrid(MAP_SIZE, 0.05, 42));
+        player = Fixtures.centeredPlayer(MAP_SIZE);
+        store = new EntityStore(map);
+
+        entities = Fixtures.randomEntities(entityCount, MAP_SIZE, 7);
+        for (Entity i: entities) {
+            i.addRef(null, player, map);
+            store.add(i);
+        }
+        store.update(0);
+
+        wave = Fixtures.randomEntities(WAVE_SIZE, MAP_SIZE, 11);
+        for (Entity i: wave) i.addRef(null, player, map);
+    }
+
+    @Benchmark
+    public void update() {
+        //el jugador se mueve un poco para que las distancias cambien como en un juego real
+        player.setPosition(player.getX() + 0.5, player.getY());
+        store.update(1 / 60.0);
+    }
+
+    //pares a menos de una casilla, lo que revisaria un juego para las colisiones entre entidades
+    @Benchmark
+    public int pairs() {
+        pairCount = 0;
+        store.grid().forEachPair(Engine.TILE_SIZE, countPairs);
+        return pairCount;
+    }
+
+    //aparecen y desaparecen WAVE_SIZE entidades entre las que ya estaban
+    @Benchmark
+    public void wave() {
+        for (Entity i: wave) store.add(i);
+        store.update(1 / 60.0);
+        for (Entity i: wave) store.remove(i);
+        store.update(1 / 60.0);
+    }
+
+    //el movimiento con colisiones de todas las entidades en un frame
+    @Benchmark
+    public void collide() {
+        step = -step;
+        for (Entity i: entities) i.move(step, step * 0.5, 15);
+    }
+}
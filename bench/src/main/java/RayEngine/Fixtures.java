@@ -0,0 +1,74 @@
+package RayEngine;
+
+import java.awt.Color;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+//datos compartidos por los benchmarks: mapas, jugador y entidades generados con una semilla fija
+final class Fixtures {
+
+    private Fixtures() {}
+
+    //mapa cuadrado con bordes solidos y paredes al azar, con la densidad indicada (0 a 1)
+    static int[][] randomGrid(int size, double density, long seed) {
+        Random r = new Random(seed);
+        int[][] grid = new int[size][size];
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                boolean border = i == 0 || j == 0 || i == size - 1 || j == size - 1;
+                if (border || r.nextDouble() < density) grid[i][j] = 1 + r.nextInt(3);
+            }
+        }
+
+        //deja libre el centro para el jugador
+        grid[size / 2][size / 2] = 0;
+        return grid;
+    }
+
+    //crea el mapa sin imprimirlo en consola, en mapas grandes eso tardaria más que el benchmark
+    static Map quietMap(int[][] grid) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Map map = new Map(grid);
+            map.addTileBehavior(2, new Sprite(Color.red));
+            map.addTileBehavior(3, new Sprite(Color.blue));
+            return map;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    static Player centeredPlayer(int size) {
+        int center = size / 2 * Engine.TILE_SIZE + Engine.TILE_SIZE / 2;
+        return new Player(100, center, center);
+    }
+
+    //texto en el formato de los archivos de mapa: numeros separados por espacios, una fila por linea
+    static String mapText(int[][] grid) {
+        StringBuilder sb = new StringBuilder(grid.length * grid[0].length * 2);
+        for (int[] row: grid) {
+            for (int j = 0; j < row.length; j++) {
+                if (j > 0) sb.append(' ');
+                sb.append(row[j]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    //entidades repartidas al azar por las casillas del mapa
+    static Entity[] randomEntities(int count, int size, long seed) {
+        Random r = new Random(seed);
+        Sprite spr = new Sprite(Color.green);
+        Entity[] entities = new Entity[count];
+
+        double extent = (size - 2) * Engine.TILE_SIZE;
+        for (int i = 0; i < count; i++) {
+            entities[i] = new Entity(spr, Engine.TILE_SIZE + r.nextDouble() * extent, Engine.TILE_SIZE + r.nextDouble() * extent);
+        }
+        return entities;
+    }
+}
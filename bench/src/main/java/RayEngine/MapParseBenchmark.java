@@ -0,0 +1,31 @@
+package RayEngine;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//lectura de un mapa en formato de texto con MapParser, el texto ya está en memoria para no medir el disco
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapParseBenchmark {
+
+    @Param({"64", "512", "2048"})
+    public int mapSize;
+
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        text = Fixtures.mapText(Fixtures.randomGrid(mapSize, 0.2, 42));
+    }
+
+    @Benchmark
+    public Object parse() throws IOException {
+        return MapParser.parse(new StringReader(text));
+    }
+}
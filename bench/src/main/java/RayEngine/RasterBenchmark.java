@@ -0,0 +1,66 @@
+package RayEngine;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*dibujo de paredes y sprites de un frame ya casteado, tanto con Graphics2D columna por columna
+como con el framebuffer por software. El resultado se dibuja en una imagen de 1280x720*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RasterBenchmark {
+
+    @Param({"320", "1280"})
+    public int rays;
+
+    @Param({"0", "200"})
+    public int entityCount;
+
+    @Param({"true", "false"})
+    public boolean software;
+
+    private static final int MAP_SIZE = 32;
+
+    private RayCaster raycaster;
+    private BufferedImage target;
+    private Graphics2D g;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map map = Fixtures.quietMap(Fixtures.randomGrid(MAP_SIZE, 0.05, 42));
+        Player player = Fixtures.centeredPlayer(MAP_SIZE);
+
+        EntityStore entities = new EntityStore(map);
+        for (Entity i: Fixtures.randomEntities(entityCount, MAP_SIZE, 7)) {
+            i.addRef(null, player, map);
+            entities.add(i);
+        }
+        entities.update(0);
+
+        raycaster = new RayCaster(player, map, entities, new ArrayList<>(), new Background(Color.darkGray, Color.gray));
+        raycaster.setRaysToCast(rays);
+        raycaster.setSoftwareRendering(software);
+        raycaster.update(1 / 60.0);
+
+        target = new BufferedImage(1280, 720, BufferedImage.TYPE_INT_RGB);
+        g = target.createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage render() {
+        raycaster.renderSimulation3D(g, target.getWidth(), target.getHeight());
+        return target;
+    }
+}
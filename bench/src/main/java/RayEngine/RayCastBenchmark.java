@@ -0,0 +1,47 @@
+package RayEngine;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//casteo de todos los rayos de un frame (RayCaster.update) con distintos tamaños de mapa, cantidad de rayos y fov
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RayCastBenchmark {
+
+    @Param({"32", "256", "1024"})
+    public int mapSize;
+
+    @Param({"320", "1280", "1920"})
+    public int rays;
+
+    @Param({"60", "90"})
+    public int fov;
+
+    @Param({"0.02", "0.2"})
+    public double density;
+
+    private Player player;
+    private RayCaster raycaster;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map map = Fixtures.quietMap(Fixtures.randomGrid(mapSize, density, 42));
+        player = Fixtures.centeredPlayer(mapSize);
+        raycaster = new RayCaster(player, map, new EntityStore(map), new ArrayList<>(), new Background(Color.black, Color.black));
+        raycaster.setRaysToCast(rays);
+        raycaster.setFOV(fov);
+    }
+
+    @Benchmark
+    public void castRays() {
+        //gira un poco la camara cada vez para no medir siempre los mismos rayos
+        player.addAngle(1.7);
+        raycaster.update(1 / 60.0);
+    }
+}
@@ -0,0 +1,60 @@
+package RayEngine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+//guardar y volver a abrir mapas binarios
+class MapFileTest {
+
+    @TempDir
+    Path dir;
+
+    //un chunk que se ensancha con setTile hace que el mapa se guarde con el ancho nuevo, sin truncar los valores
+    @Test
+    void widenedTilesSurviveSave() throws IOException {
+        Path original = dir.resolve("original.rmap");
+        Path saved = dir.resolve("saved.rmap");
+
+        MapFile.write(original, Fixtures.quietMap(Fixtures.randomGrid(100, 0.2, 7)), 16, null, null, null);
+        MapFile file = new MapFile(original);
+        assertEquals(1, file.getBytesPerTile());
+
+        Map map = file.createMap();
+        map.setTile(5, 5, 300);
+        map.setTile(40, 70, 70000);
+        map.setTile(90, 3, -2);
+        assertEquals(4, map.getBytesPerTile());
+
+        MapFile.write(saved, map, 16, null, null, null);
+        Map reopened = new MapFile(saved).createMap();
+
+        assertEquals(300, reopened.getTile(5, 5));
+        assertEquals(70000, reopened.getTile(40, 70));
+        assertEquals(-2, reopened.getTile(90, 3));
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                assertEquals(map.getTile(i, j), reopened.getTile(i, j));
+            }
+        }
+    }
+
+    //un solo chunk de 2 bytes basta para que todo el mapa se guarde con 2 bytes
+    @Test
+    void shortChunkWidensFile() throws IOException {
+        Path original = dir.resolve("original.rmap");
+        Path saved = dir.resolve("saved.rmap");
+
+        MapFile.write(original, Fixtures.quietMap(Fixtures.randomGrid(40, 0.2, 3)), 8, null, null, null);
+        Map map = new MapFile(original).createMap();
+        map.setTile(1, 1, 300);
+
+        MapFile.write(saved, map, 8, null, null, null);
+        MapFile file = new MapFile(saved);
+        assertEquals(2, file.getBytesPerTile());
+        assertEquals(300, file.createMap().getTile(1, 1));
+    }
+}
@@ -15,6 +15,11 @@ public class Background {
     public final Color ceiling;
     public final Color floor;
     
+    //pixeles del fondo reescalado para el renderizado por software, solo se recalculan cuando cambia el tamaño
+    private int[] scaledPixels;
+    private int scaledW;
+    private int scaledH;
+    
     public Background(Color ceiling, Color floor) {
         bg = getSolidColorImg(ceiling, floor);
         this.ceiling = ceiling;
@@ -81,4 +86,15 @@ public class Background {
     public void draw(Graphics2D g, int x, int y, int w, int h) {
         g.drawImage(bg, x, y, w, h, null);
     }
+    
+    //regresa los pixeles del fondo escalado a w x h, fila por fila
+    final int[] getPixels(int w, int h) {
+        if (scaledPixels == null || w != scaledW || h != scaledH) {
+            BufferedImage scaled = Sprite.reescale(bg, w, h);
+            scaledPixels = scaled.getRGB(0, 0, w, h, null, 0, w);
+            scaledW = w;
+            scaledH = h;
+        }
+        return scaledPixels;
+    }
 }
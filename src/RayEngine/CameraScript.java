@@ -0,0 +1,8 @@
+package RayEngine;
+
+/*mueve la camara en un HeadlessEngine, donde no hay teclado ni mouse para controlar al jugador. Se llama una vez por
+frame antes de actualizar las entidades, y puede cambiar la posición y el angulo del jugador con setPosition y setAngle*/
+public interface CameraScript {
+    
+    void update(Player p, int frame, double dt);
+}
@@ -0,0 +1,166 @@
+package RayEngine;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/*casillas de un mapa binario (ver MapFile). El archivo está mapeado en memoria y dividido en chunks cuadrados de
+chunkSize x chunkSize casillas, y cada chunk se copia del archivo a un TileGrid propio solo la primera vez que se
+lee una de sus casillas. Asi un mapa enorme abre al instante y solo ocupa memoria la parte que el jugador ha visto.
+
+streamAround carga los chunks cercanos al jugador antes de que los rayos los necesiten y descarta los que quedaron
+lejos, excepto los que se modificaron con set, porque esos cambios no están en el archivo*/
+final class ChunkedTileGrid extends TileGrid {
+
+    private final int n; //columnas del mapa, para convertir el indice en fila y columna
+    private final int shift; //chunkSize = 1 << shift
+    private final int mask;
+    private final int chunkTiles;
+    private final int chunksX; //chunks por fila de chunks
+    private final int chunksY;
+    private final int bytesPerTile; //ancho de las casillas en el archivo
+    private int widest; //ancho del chunk más ancho, crece cuando set guarda un valor que no cabía
+
+    //datos de las casillas en el archivo, chunk por chunk. Solo se usan lecturas absolutas, asi que varios hilos pueden leer
+    private final ByteBuffer bytes;
+    private final ShortBuffer shorts;
+    private final IntBuffer ints;
+
+    private final TileGrid[] chunks; //null si el chunk no está cargado
+    private final boolean[] dirty; //chunks modificados, nunca se descartan
+
+    private int loadRadius; //chunks alrededor del jugador que se cargan por adelantado
+    private int lastChunkX;
+    private int lastChunkY;
+
+    ChunkedTileGrid(ByteBuffer data, int m, int n, int chunkSize, int bytesPerTile) {
+        super(m * n);
+        this.n = n;
+        this.shift = Integer.numberOfTrailingZeros(chunkSize);
+        this.mask = chunkSize - 1;
+        this.chunkTiles = chunkSize * chunkSize;
+        this.chunksX = (n + chunkSize - 1) / chunkSize;
+        this.chunksY = (m + chunkSize - 1) / chunkSize;
+        this.bytesPerTile = bytesPerTile;
+        this.widest = bytesPerTile;
+
+        bytes = data;
+        shorts = data.asShortBuffer();
+        ints = data.asIntBuffer();
+
+        chunks = new TileGrid[chunksX * chunksY];
+        dirty = new boolean[chunks.length];
+
+        loadRadius = 2;
+        lastChunkX = -1;
+        lastChunkY = -1;
+    }
+
+    @Override
+    int get(int index) {
+        int row = index / n;
+        int col = index - row * n;
+        int k = (row >> shift) * chunksX + (col >> shift);
+
+        TileGrid chunk = chunks[k];
+        if (chunk == null) chunk = load(k);
+        return chunk.get(((row & mask) << shift) | (col & mask));
+    }
+
+    @Override
+    void set(int index, int value) {
+        int row = index / n;
+        int col = index - row * n;
+        int k = (row >> shift) * chunksX + (col >> shift);
+
+        TileGrid chunk = chunks[k];
+        if (chunk == null) chunk = load(k);
+
+        //cada chunk cambia de ancho por separado
+        if (!chunk.fits(value)) {
+            chunks[k] = chunk = chunk.widen(value);
+            widest = Math.max(widest, chunk.bytesPerTile());
+        }
+        chunk.set(((row & mask) << shift) | (col & mask), value);
+        dirty[k] = true;
+    }
+
+    @Override
+    boolean fits(int value) {
+        return true;
+    }
+
+    //el ancho en el que caben todas las casillas, incluidas las de los chunks que se ensancharon con set
+    @Override
+    int bytesPerTile() {
+        return widest;
+    }
+
+    /*copia el chunk k del archivo. Si dos hilos del raycaster cargan el mismo chunk al mismo tiempo los dos leen lo
+    mismo y cualquiera de las copias sirve, el array se llena antes de crear el TileGrid asi que nunca se ve a medias*/
+    private TileGrid load(int k) {
+        int offset = k * chunkTiles;
+        TileGrid chunk;
+
+        switch (bytesPerTile) {
+            case 1 -> {
+                byte[] data = new byte[chunkTiles];
+                bytes.get(offset, data);
+                chunk = new TileGrid.Bytes(data);
+            }
+            case 2 -> {
+                short[] data = new short[chunkTiles];
+                shorts.get(offset, data);
+                chunk = new TileGrid.Shorts(data);
+            }
+            default -> {
+                int[] data = new int[chunkTiles];
+                ints.get(offset, data);
+                chunk = new TileGrid.Ints(data);
+            }
+        }
+
+        chunks[k] = chunk;
+        return chunk;
+    }
+
+    void setLoadRadius(int loadRadius) {
+        this.loadRadius = loadRadius;
+    }
+
+    /*carga los chunks a loadRadius o menos del chunk en el que está la casilla (row, col) y descarta los que están
+    a más de loadRadius + 1, asi moverse en el borde de un chunk no carga y descarta los mismos chunks cada frame.
+    Solo hace algo cuando el jugador cambia de chunk*/
+    void streamAround(int row, int col) {
+        int cx = Math.max(0, Math.min(chunksX - 1, col >> shift));
+        int cy = Math.max(0, Math.min(chunksY - 1, row >> shift));
+        if (cx == lastChunkX && cy == lastChunkY) return;
+        lastChunkX = cx;
+        lastChunkY = cy;
+
+        int keep = loadRadius + 1;
+        for (int y = 0, k = 0; y < chunksY; y++) {
+            for (int x = 0; x < chunksX; x++, k++) {
+                int d = Math.max(Math.abs(x - cx), Math.abs(y - cy));
+
+                if (d <= loadRadius) {
+                    if (chunks[k] == null) load(k);
+                } else if (d > keep && !dirty[k]) {
+                    chunks[k] = null;
+                }
+            }
+        }
+    }
+
+    int getLoadedChunks() {
+        int loaded = 0;
+        for (TileGrid i: chunks) {
+            if (i != null) loaded++;
+        }
+        return loaded;
+    }
+
+    int getChunkCount() {
+        return chunks.length;
+    }
+}
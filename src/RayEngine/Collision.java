@@ -0,0 +1,16 @@
+package RayEngine;
+
+/*resultado de Map.move. Se crea una vez y se reutiliza en cada movimiento, para que mover cosas por el mapa no
+cree objetos cada frame*/
+public class Collision {
+    public double x; //posición final
+    public double y;
+
+    //si el movimiento en cada eje se detuvo contra una pared
+    public boolean hitX;
+    public boolean hitY;
+
+    public boolean hit() {
+        return hitX || hitY;
+    }
+}
@@ -0,0 +1,64 @@
+package RayEngine;
+
+/*distancia perpendicular de la pared de cada columna. Además de la distancia guarda tablas con el minimo y el maximo
+de cada rango de columnas de tamaño potencia de 2 (sparse table), asi se puede saber el minimo o maximo de cualquier
+rango de columnas con solo dos lecturas, sin recorrer todas las columnas del rango. Se usa para descartar sprites
+completos que están detras de las paredes sin revisar sus columnas una por una*/
+final class DepthBuffer {
+
+    final double[] depth;
+    final int width;
+
+    //minRange[k][i] y maxRange[k][i] son el minimo y el maximo de las columnas i a i + 2^k (excluida)
+    private final double[][] minRange;
+    private final double[][] maxRange;
+
+    DepthBuffer(int width) {
+        this.width = width;
+        depth = new double[width];
+
+        int levels = 1;
+        while ((1 << levels) <= width) levels++;
+
+        minRange = new double[levels][];
+        maxRange = new double[levels][];
+        minRange[0] = depth; //el primer nivel es la misma distancia de cada columna
+        maxRange[0] = depth;
+        for (int k = 1; k < levels; k++) {
+            minRange[k] = new double[width - (1 << k) + 1];
+            maxRange[k] = new double[width - (1 << k) + 1];
+        }
+    }
+
+    //recalcula las tablas de rangos, se llama una vez por frame despues de llenar depth
+    void build() {
+        for (int k = 1; k < minRange.length; k++) {
+            double[] prevMin = minRange[k - 1];
+            double[] prevMax = maxRange[k - 1];
+            double[] curMin = minRange[k];
+            double[] curMax = maxRange[k];
+            int half = 1 << (k - 1);
+
+            for (int i = 0; i < curMin.length; i++) {
+                double a = prevMin[i], b = prevMin[i + half];
+                curMin[i] = a < b ? a : b;
+                a = prevMax[i];
+                b = prevMax[i + half];
+                curMax[i] = a > b ? a : b;
+            }
+        }
+    }
+
+    //minimo de las columnas from (incluida) a to (excluida), el rango no puede estar vacio
+    double min(int from, int to) {
+        int k = 31 - Integer.numberOfLeadingZeros(to - from);
+        double a = minRange[k][from], b = minRange[k][to - (1 << k)];
+        return a < b ? a : b;
+    }
+
+    double max(int from, int to) {
+        int k = 31 - Integer.numberOfLeadingZeros(to - from);
+        double a = maxRange[k][from], b = maxRange[k][to - (1 << k)];
+        return a > b ? a : b;
+    }
+}
@@ -0,0 +1,95 @@
+package RayEngine;
+
+/*distancia de cada casilla a la pared más cercana, medida en casillas con la distancia de Chebyshev (el maximo
+entre la distancia en x y en y). Si una casilla tiene distancia d, todas las casillas del cuadrado de radio d - 1
+a su alrededor están vacias, asi que el raycaster puede cruzar ese cuadrado de un solo salto en vez de casilla
+por casilla. Fuera del mapa cuenta como pared, para que un salto nunca se salga del mapa.
+
+Las distancias se limitan a CAP, con eso caben en un byte y actualizar una casilla solo afecta a las que están
+a CAP casillas o menos*/
+final class DistanceField {
+
+    static final int CAP = 32;
+
+    private final int m;
+    private final int n;
+    final byte[] dist;
+
+    DistanceField(Map map) {
+        m = map.m;
+        n = map.n;
+        dist = new byte[m * n];
+        compute(map, 0, 0, m, n, 0, 0, m, n);
+    }
+
+    //recalcula las distancias alrededor de la casilla (row, col) despues de que cambió entre pared y vacia
+    void update(Map map, int row, int col) {
+        //casillas cuya distancia puede cambiar
+        int top = Math.max(0, row - CAP), bottom = Math.min(m, row + CAP + 1);
+        int left = Math.max(0, col - CAP), right = Math.min(n, col + CAP + 1);
+
+        /*las paredes que les importan a esas casillas están a CAP casillas o menos de ellas, y el camino más corto
+        entre dos casillas con esta distancia no sale de su rectangulo, asi que basta calcular en la zona ampliada*/
+        compute(map,
+                Math.max(0, top - CAP), Math.max(0, left - CAP), Math.min(m, bottom + CAP), Math.min(n, right + CAP),
+                top, left, bottom, right);
+    }
+
+    /*calcula la distancia en el rectangulo de filas r0 a r1 y columnas c0 a c1 (excluidas) con dos pasadas: de arriba
+    a la izquierda hacia abajo a la derecha y al reves, cada casilla toma el minimo de sus vecinas ya visitadas más 1.
+    Con las 8 vecinas y el mismo costo en diagonal el resultado es exactamente la distancia de Chebyshev. Solo se
+    guarda el resultado de las filas o0 a o1 y columnas p0 a p1*/
+    private void compute(Map map, int r0, int c0, int r1, int c1, int o0, int p0, int o1, int p1) {
+        int w = c1 - c0, h = r1 - r0;
+        int[] d = new int[w * h];
+
+        for (int i = 0, k = 0; i < h; i++) {
+            int row = r0 + i;
+            for (int j = 0; j < w; j++, k++) {
+                int col = c0 + j;
+
+                if (map.isWallIndex(row * n + col)) {
+                    d[k] = 0;
+                } else {
+                    //distancia al borde del mapa, fuera del mapa cuenta como pared
+                    int border = Math.min(Math.min(row + 1, col + 1), Math.min(m - row, n - col));
+                    d[k] = Math.min(border, CAP);
+                }
+            }
+        }
+
+        for (int i = 0, k = 0; i < h; i++) {
+            for (int j = 0; j < w; j++, k++) {
+                int v = d[k];
+                if (v == 0) continue;
+                if (j > 0) v = Math.min(v, d[k - 1] + 1);
+                if (i > 0) {
+                    v = Math.min(v, d[k - w] + 1);
+                    if (j > 0) v = Math.min(v, d[k - w - 1] + 1);
+                    if (j < w - 1) v = Math.min(v, d[k - w + 1] + 1);
+                }
+                d[k] = v;
+            }
+        }
+
+        for (int i = h - 1, k = w * h - 1; i >= 0; i--) {
+            for (int j = w - 1; j >= 0; j--, k--) {
+                int v = d[k];
+                if (v == 0) continue;
+                if (j < w - 1) v = Math.min(v, d[k + 1] + 1);
+                if (i < h - 1) {
+                    v = Math.min(v, d[k + w] + 1);
+                    if (j < w - 1) v = Math.min(v, d[k + w + 1] + 1);
+                    if (j > 0) v = Math.min(v, d[k + w - 1] + 1);
+                }
+                d[k] = v;
+            }
+        }
+
+        for (int row = o0; row < o1; row++) {
+            for (int col = p0; col < p1; col++) {
+                dist[row * n + col] = (byte) d[(row - r0) * w + (col - c0)];
+            }
+        }
+    }
+}
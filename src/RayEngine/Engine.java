@@ -4,9 +4,10 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.image.*;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 import javax.swing.*;
 
-public final class Engine extends JFrame{
+public final class Engine extends JFrame implements EntityHost{
     
     public static final int TILE_SIZE = 64; //cada celda medirá 64x64 unidades, y sus sprites tendrán esa cantidad de pixeles
     private static int WIN_WIDTH = 800;
@@ -19,14 +20,10 @@ public final class Engine extends JFrame{
     private final Canvas c;
     
     //raycaster
-    private final ArrayList<Entity> entities;
+    private final EntityStore entities;
     private final ArrayList<Banner> banners;
     private final RayCaster raycaster;
     
-    //elminiar entidades
-    private final ArrayList<Entity> nextToBeRemoved;
-    private final ArrayList<Entity> nextToBeAdded;
-    
     //para ver loq ue sucede en la vista 2d
     private final Canvas view2d;
     private final JDialog debugScreen;
@@ -64,6 +61,9 @@ public final class Engine extends JFrame{
     //referencia al fondo que usa el raycaster
     private Background bg;
     
+    //tiempos de cada fase del loop, se muestran en la pantalla de debug
+    private final FrameProfiler profiler;
+    
     
     private static void setWinWidthAndHeight(Dimension d) {
         WIN_WIDTH = d.width;
@@ -113,9 +113,7 @@ public final class Engine extends JFrame{
         this.map = map;
         
         //lista de entidades
-        entities = new ArrayList<>();
-        nextToBeRemoved = new ArrayList<>();
-        nextToBeAdded = new ArrayList<>();
+        entities = new EntityStore(map);
         
         //lista de banners
         banners = new ArrayList<>();
@@ -124,6 +122,9 @@ public final class Engine extends JFrame{
         bg = new Background(Color.black, Color.black);
         this.raycaster = new RayCaster(p, map, entities, banners, bg);
         
+        profiler = new FrameProfiler();
+        raycaster.setProfiler(profiler);
+        
         //parámetros
         deltaTime = 0;
         targetFPS = -1;
@@ -183,6 +184,50 @@ public final class Engine extends JFrame{
         raycaster.setRaysToCast(rays);
     }
     
+    //reutiliza los rayos del frame anterior cuando la camara y el mapa no cambiaron
+    public void setTemporalCoherence(boolean temporalCoherence) {
+        raycaster.setTemporalCoherence(temporalCoherence);
+    }
+    
+    //niebla que mezcla paredes y sprites con color entre las distancias start y end
+    public void setFog(Color color, double start, double end) {
+        raycaster.setFog(color, start, end);
+    }
+    
+    public void disableFog() {
+        raycaster.disableFog();
+    }
+    
+    //brillo de las paredes horizontales, de 0 a 1
+    public void setSideShade(double sideShade) {
+        raycaster.setSideShade(sideShade);
+    }
+    
+    public void setTileTint(int tileValue, Color tint) {
+        raycaster.setTileTint(tileValue, tint);
+    }
+    
+    //reparte los rayos sobre un plano de camara en vez de separarlos por el mismo angulo
+    public void setCameraPlane(boolean cameraPlane) {
+        raycaster.setCameraPlane(cameraPlane);
+    }
+    
+    //reparte el casteo de rayos y el dibujo por software entre varios hilos
+    public void setParallelRendering(boolean parallel) {
+        raycaster.setParallel(parallel);
+    }
+    
+    /*actualiza en varios hilos las entidades que regresan true en isParallelSafe, usando el pool comun de java.
+    Las demás se siguen actualizando en el hilo del juego*/
+    public void setParallelEntities(boolean parallel) {
+        entities.setParallel(parallel, ForkJoinPool.commonPool());
+    }
+    
+    //true para dibujar en un framebuffer por software, false para dibujar cada columna con Graphics2D
+    public void setSoftwareRendering(boolean software) {
+        raycaster.setSoftwareRendering(software);
+    }
+    
     
     //BANNERS
     
@@ -260,6 +305,11 @@ public final class Engine extends JFrame{
     public void toggleShowFPS() {
         showFPSinGame = !showFPSinGame;
     }
+    
+    //tiempos de cada fase de los ultimos frames
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
 
     //modifica las dimensiones del frame principal, además sale de pantalla completa en caso de que esté activada
     public void setWindowSize(Dimension d) {
@@ -352,7 +402,9 @@ public final class Engine extends JFrame{
         
         while(running) {
             long start = System.nanoTime();
+            profiler.start(FrameProfiler.FRAME);
             
+            profiler.start(FrameProfiler.INPUT);
             in.update();
             
             //pausa o resume el juego
@@ -373,6 +425,7 @@ public final class Engine extends JFrame{
             
             /*llama todo esto fuera de update para que incluso con el juego pausado se pueda resumir,
             activar y desactivar la pantalla de debug o entrar y salir de pantalla completa*/
+            profiler.stop(FrameProfiler.INPUT);
             
             updateFPS(deltaTime); //actualizar los fps
             
@@ -385,8 +438,10 @@ public final class Engine extends JFrame{
             bs = c.getBufferStrategy();
             render(bs);
             if (debugActive) {
+                profiler.start(FrameProfiler.DEBUG);
                 bs2d = view2d.getBufferStrategy();
                 render2D(bs2d);
+                profiler.stop(FrameProfiler.DEBUG);
             }
             
             
@@ -395,7 +450,13 @@ public final class Engine extends JFrame{
             
             //recalcular el dt
             deltaTime = (finish - start) / 1_000_000_000.0;
+            
+            profiler.start(FrameProfiler.SLEEP);
             deltaTime += delay(); //detiene el hilo para mantener los fps esperadoa (targetFPS) y suma el tiempo que se detuvo al dt
+            profiler.stop(FrameProfiler.SLEEP);
+            
+            profiler.stop(FrameProfiler.FRAME);
+            profiler.endFrame();
         }
     }
     
@@ -444,53 +505,68 @@ public final class Engine extends JFrame{
     
     //manejo de entidades
     
+    //la entidad se agrega al inicio del siguiente update
     public void addEntity(Entity en) {
+        spawnEntity(en);
+    }
+    
+    /*igual que addEntity pero regresa el handle de la entidad, que ya sirve para eliminarla o para revisar con
+    isAlive si sigue en el juego. Si la entidad ya estaba agregada regresa su mismo handle*/
+    public int spawnEntity(Entity en) {
         en.addRef(this, p, map);
-        nextToBeAdded.add(en);
+        return entities.add(en);
     }
     
     public void removeEntity(Entity en) {
-        nextToBeRemoved.add(en);
+        entities.remove(en);
+    }
+    
+    public void removeEntity(int handle) {
+        entities.remove(handle);
+    }
+    
+    //la entidad del handle, o null si todavia no se agrega o ya se eliminó
+    public Entity getEntity(int handle) {
+        return entities.get(handle);
+    }
+    
+    public boolean isAlive(int handle) {
+        return entities.get(handle) != null;
     }
     
+    //entidades a distancia radius o menos del jugador
     public ArrayList<Entity> getEntitiesInRadius(double radius) {
-        ArrayList<Entity> inside = new ArrayList<>();
-        
-        //empieza del ultimo porque la lista está ordenada de mayor a menor
-        for (Entity i: entities) {
-            if (i.getDistance() <= radius) inside.add(i);
-        }
-        
-        return inside;
+        return entities.getInRadius(p.getX(), p.getY(), radius);
     }
     
-    public ArrayList<Entity> getEntities() {
-        return (ArrayList<Entity>) entities.clone();
+    public ArrayList<Entity> getEntitiesInRadius(double x, double y, double radius) {
+        return entities.getInRadius(x, y, radius);
     }
     
-    private void updateEntitiesList() {
-        for (Entity i: nextToBeRemoved) {
-            try {
-                entities.remove(i);
-            } catch(Exception e) {}
-        }
-        nextToBeRemoved.clear();
-        
-        for (Entity i: nextToBeAdded) {
-            try {
-                entities.add(i);
-            } catch(Exception e) {}
-        }
-        nextToBeAdded.clear();
-        
-        //Reor
-        entities.sort((a, b) -> Double.compare(b.getDistance(), a.getDistance()));
+    /*indice de las entidades por casilla, para consultas de cercania y colisiones entre entidades sin crear listas.
+    Se actualiza en cada update, las entidades agregadas o eliminadas aparecen a partir del siguiente*/
+    public SpatialGrid getSpatialGrid() {
+        return entities.grid();
+    }
+    
+    public ArrayList<Entity> getEntities() {
+        return entities.copy();
     }
     
     public boolean containsEntity(Entity en) {
         return entities.contains(en);
     }
     
+    //si la entidad se dibujó en el ultimo frame, aunque sea una parte
+    public boolean isOnScreen(Entity en) {
+        return raycaster.isOnScreen(en);
+    }
+    
+    //si algún rayo del ultimo frame cruzó la casilla, sirve para saber si un cuarto está a la vista
+    public boolean isTileVisible(int row, int col) {
+        return raycaster.isTileVisible(row, col);
+    }
+    
     
     
     //UPDATE Y RENDER
@@ -507,38 +583,21 @@ public final class Engine extends JFrame{
         }
         
         //actualizar los componentes
+        profiler.start(FrameProfiler.PLAYER);
         p.update(dt);
+        profiler.stop(FrameProfiler.PLAYER);
+        
+        profiler.start(FrameProfiler.ENTITIES);
         updateEntities(dt);
+        profiler.stop(FrameProfiler.ENTITIES);
+        
+        profiler.start(FrameProfiler.RAYCAST);
         raycaster.update(dt);
+        profiler.stop(FrameProfiler.RAYCAST);
     }
     
     private void updateEntities(double dt) {
-        //elimina las entidades que se tienen que eliminar
-        for (Entity i: nextToBeRemoved) {
-            try {
-                entities.remove(i);
-            } catch(Exception e) {}
-        }
-        nextToBeRemoved.clear();
-        
-        //añade las que se tienen que añadir
-        for (Entity i: nextToBeAdded) {
-            try {
-                entities.add(i);
-            } catch(Exception e) {}
-        }
-        nextToBeAdded.clear();
-        
-        //una vez añadidas se actualizan
-        for (Entity i: entities) {
-            i.update(dt);
-            i.updateDistance();
-        }
-        
-        /*una vez se actualizo la distancia de la entidad, la lista se ordena de mayor a menor distancia
-        Esto permite que se dibujen primero las entidades más lejanas, y las más cercanas se dibujen por
-        arriba y dar un efecto de profundidad*/
-        entities.sort((a, b) -> Double.compare(b.getDistance(), a.getDistance()));
+        entities.update(dt);
     }
     
     
@@ -550,12 +609,15 @@ public final class Engine extends JFrame{
         
         //renderizado
             raycaster.renderSimulation3D(g);
+            
+        profiler.start(FrameProfiler.PRESENT);
             if (showFPSinGame) drawTextBox(g, String.format("FPS: %.2f", FPS), 0, 0);
         
             
         //muestra el frame dibujar
         g.dispose();
         bs.show();
+        profiler.stop(FrameProfiler.PRESENT);
     }
     
     //renderiza la vista en 2d
@@ -576,6 +638,8 @@ public final class Engine extends JFrame{
             drawTextBox(g, String.format("dt: %.6f", deltaTime), 10, 10);
             drawTextBox(g, String.format("FPS: %.2f", FPS), 100, 10);
             if (paused) drawTextBox(g, "PAUSADO", view2d.getWidth() / 2, 10);
+            
+            drawProfiler(g, 10, 60);
         
 
         g.dispose();
@@ -583,6 +647,29 @@ public final class Engine extends JFrame{
     }
     
     
+    //dibuja una tabla con los percentiles de cada fase del loop, en milisegundos
+    private void drawProfiler(Graphics2D g, int x, int y) {
+        FontMetrics fm = g.getFontMetrics();
+        int lineHeight = fm.getHeight();
+        int rows = FrameProfiler.PHASES + 1;
+        
+        g.setColor(Color.black);
+        g.fillRect(x, y, fm.stringWidth("entities  00.000  00.000  00.000  000.000") + lineHeight, lineHeight * (rows + 1));
+        g.setColor(Color.white);
+        
+        int textX = x + lineHeight / 2;
+        int textY = y + lineHeight / 2 + fm.getAscent();
+        g.drawString(String.format("%-8s  %6s  %6s  %6s  %7s", "ms", "p50", "p95", "p99", "max"), textX, textY);
+        
+        for (int i = 0; i < FrameProfiler.PHASES; i++) {
+            textY += lineHeight;
+            g.drawString(String.format("%-8s  %6.3f  %6.3f  %6.3f  %7.3f",
+                    FrameProfiler.getName(i),
+                    profiler.p50(i) / 1e6, profiler.p95(i) / 1e6,
+                    profiler.p99(i) / 1e6, profiler.max(i) / 1e6), textX, textY);
+        }
+    }
+    
     //dibuja un texto con un fondo negro
     private void drawTextBox(Graphics2D g, String str, int x, int y) {
         FontMetrics fm = g.getFontMetrics();
@@ -11,10 +11,19 @@ public class Entity {
     
     private double distance; //distancia hacia el jugador
     
+    int handle = -1; //handle que le dio el EntityStore, -1 si no está en uno
+    int gridSlot = -1; //lugar de la entidad en el SpatialGrid, -1 si no está en uno
+    boolean readded; //se volvió a agregar al EntityStore antes del siguiente update, cancela su eliminación
+    
+    //ultimo frame en que el RayCaster la proyectó y su posición en los arrays de proyección de ese frame
+    int projFrame;
+    int projIndex;
+    
     //referencias
     protected Player p;
     protected Map map;
-    protected Engine e;
+    protected Engine e; //null si la entidad está en un HeadlessEngine
+    private EntityHost host; //el Engine o HeadlessEngine que actualiza la entidad
     
     protected boolean visible = true;
     
@@ -28,17 +37,28 @@ public class Entity {
     }
     
     public Entity(String path, double x, double y) {
-        s = new Sprite(path);
+        s = Sprite.load(path); //las entidades con la misma imagen comparten el sprite
         this.x = x;
         this.y = y;
     }
     
     public void addRef(Engine e, Player p, Map map) {
-        this.e = e;
+        addRef((EntityHost) e, p, map);
+    }
+    
+    public void addRef(EntityHost host, Player p, Map map) {
+        this.host = host;
+        this.e = host instanceof Engine ? (Engine) host : null;
         this.p = p;
         this.map = map;
     }
     
+    /*el engine que actualiza la entidad, con o sin ventana. Para agregar, eliminar o buscar entidades es mejor usar
+    este que el campo e, que es null en un HeadlessEngine*/
+    protected final EntityHost getHost() {
+        return host;
+    }
+    
     public double getX() {
         return x;
     }
@@ -51,6 +71,11 @@ public class Entity {
         return s;
     }
     
+    //handle con el que el Engine identifica a la entidad, -1 si no se ha agregado o ya se eliminó
+    public int getHandle() {
+        return handle;
+    }
+    
     //mostrar
     public void setVisible(boolean visible) {
         this.visible = visible;
@@ -61,6 +86,34 @@ public class Entity {
     public void update(double dt)  {
     }
     
+    /*si regresa true, el Engine puede llamar a update de esta entidad al mismo tiempo que al de otras entidades
+    seguras, cuando la actualización en paralelo está activa. Para eso update solo puede escribir en la propia
+    entidad, y de las demás no puede leer sus campos directamente (ni getX / getY), porque otro hilo puede estarlos
+    escribiendo. Para encontrarlas y saber donde están se usan las consultas del SpatialGrid y su getX / getY, que
+    dan la posición del inicio del frame. El mapa y el jugador si se pueden leer. Lo que cambie a otras entidades
+    se pasa a defer, ahi ya se pueden leer y escribir libremente. Agregar o eliminar entidades con el Engine si se
+    puede, se aplica igual que siempre en el siguiente update*/
+    public boolean isParallelSafe() {
+        return false;
+    }
+    
+    /*ejecuta la acción cuando terminen de actualizarse todas las entidades del frame, en un solo hilo. Las acciones
+    se ejecutan en el orden de las entidades que las aplazaron, con o sin actualización en paralelo*/
+    protected final void defer(Runnable action) {
+        EntityStore.defer(action);
+    }
+    
+    /*mueve la entidad (dx, dy) como un circulo de radio radius, deslizandose por las paredes del mapa. Regresa true
+    si chocó. No crea objetos y solo escribe en la propia entidad, asi se puede usar en un update paralelo*/
+    protected final boolean move(double dx, double dy, double radius) {
+        double newX = map.sweepX(x, y, dx, radius);
+        double newY = map.sweepY(newX, y, dy, radius);
+        boolean hit = newX != x + dx || newY != y + dy;
+        x = newX;
+        y = newY;
+        return hit;
+    }
+    
     public void drawEntity(Graphics2D g) {
         int w = 6;
         g.fillRect((int) (x - w/2), (int) (y - w/2), w, w);
@@ -0,0 +1,35 @@
+package RayEngine;
+
+import java.util.ArrayList;
+
+/*lo que una entidad puede pedirle al engine que la actualiza: agregar y eliminar entidades y consultar las que hay.
+Lo implementan Engine y HeadlessEngine, y cada entidad lo obtiene con getHost, asi la misma entidad funciona con o
+sin ventana*/
+public interface EntityHost {
+
+    void addEntity(Entity en);
+
+    int spawnEntity(Entity en);
+
+    void removeEntity(Entity en);
+
+    void removeEntity(int handle);
+
+    Entity getEntity(int handle);
+
+    boolean isAlive(int handle);
+
+    ArrayList<Entity> getEntitiesInRadius(double radius);
+
+    ArrayList<Entity> getEntitiesInRadius(double x, double y, double radius);
+
+    SpatialGrid getSpatialGrid();
+
+    ArrayList<Entity> getEntities();
+
+    boolean containsEntity(Entity en);
+
+    boolean isOnScreen(Entity en);
+
+    boolean isTileVisible(int row, int col);
+}
@@ -0,0 +1,529 @@
+package RayEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*guarda las entidades del juego y las que se van a agregar o eliminar en el siguiente frame. Las entidades no se
+agregan ni eliminan en el momento porque podria pasar mientras se recorre la lista (por ejemplo si una entidad
+elimina a otra en su update), asi que se guardan aparte y se aplican al inicio de cada update.
+
+Las entidades vivas están juntas en los primeros count lugares (slots) de arrays paralelos: el objeto Entity y una
+copia de su posición, distancia y visibilidad que se toma al final de cada update. El raycaster recorre
+esas copias en vez de los objetos, que están repartidos por el heap, y solo toca el Entity de las que se van a
+dibujar. Para eliminar una entidad la del ultimo slot se mueve a su lugar, asi que el orden de los slots cambia.
+
+Como los slots cambian, cada entidad recibe un handle: un entero con el id de la entidad en los bits bajos y la
+generación del id en los altos. Al eliminar la entidad su id se reutiliza con otra generación, asi un handle
+viejo no apunta a la entidad nueva. Los ids libres se reutilizan en el orden en que se liberaron y solo cuando hay
+por lo menos MIN_FREE_IDS libres, asi un mismo id no se reutiliza seguido: para que su generación dé la vuelta y un
+handle viejo vuelva a ser valido tienen que aparecer millones de entidades mientras alguien guarda ese handle.
+
+En modo paralelo las entidades que dicen ser seguras (Entity.isParallelSafe) se actualizan en bloques de
+CHUNK_SIZE en un ForkJoinPool, y las demás despues, en un solo hilo y en su orden. Lo que una entidad agrega,
+elimina o aplaza con Entity.defer durante su update se guarda en el buffer de su bloque. Cuando ya se actualizaron
+todas, las altas y bajas de los buffers se juntan en orden de bloque y las acciones aplazadas se ejecutan en el orden
+de los slots de las entidades que las aplazaron, igual que sin modo paralelo. Las entidades seguras ven a las demás con la posición del inicio del frame que guarda
+el SpatialGrid (ver Entity.isParallelSafe). Los bloques no dependen de cuantos hilos haya, asi el resultado es el
+mismo con cualquier numero de hilos. No es el mismo que sin modo paralelo, donde cada entidad ya ve a las que se
+movieron antes que ella en el frame*/
+final class EntityStore {
+
+    static final int CHUNK_SIZE = 64;
+
+    //un handle es generación << ID_BITS | id, con 13 bits de generación
+    private static final int ID_BITS = 18;
+    private static final int ID_MASK = (1 << ID_BITS) - 1;
+    private static final int GENERATION_MASK = (1 << (31 - ID_BITS)) - 1; //para que el handle nunca sea negativo
+    private static final int MIN_FREE_IDS = 1024; //mientras haya menos libres se usan ids nuevos
+
+    //lo que se aplaza durante el update de un bloque (o de las entidades que se actualizan en un solo hilo)
+    private static final class ChunkBuffer {
+        final EntityStore owner; //store que se está actualizando, solo sus altas y bajas van al buffer
+        final ArrayList<Entity> added = new ArrayList<>();
+        final ArrayList<Entity> removed = new ArrayList<>();
+        final ArrayList<Runnable> deferred = new ArrayList<>();
+        int[] deferredSlot = new int[16]; //slot de la entidad que aplazó cada acción
+        int slot; //slot de la entidad que se está actualizando
+
+        ChunkBuffer(EntityStore owner) {
+            this.owner = owner;
+        }
+
+        void defer(Runnable action) {
+            int k = deferred.size();
+            if (k == deferredSlot.length) deferredSlot = Arrays.copyOf(deferredSlot, k * 2);
+            deferredSlot[k] = slot;
+            deferred.add(action);
+        }
+    }
+
+    /*buffer del bloque que está actualizando el hilo actual, null fuera del update. Es uno para todos los stores,
+    porque defer no sabe de que store es la entidad que lo llama, pero agregar o eliminar entidades de otro store
+    (por ejemplo de otro Engine) no pasa por él: va directo a las listas de ese store*/
+    private static final ThreadLocal<ChunkBuffer> CURRENT = new ThreadLocal<>();
+
+    //datos de cada slot
+    private Entity[] entity;
+    private int[] slotId;
+    private double[] posX;
+    private double[] posY;
+    private double[] distance;
+    private boolean[] visible;
+    private int count;
+
+    //datos de cada id
+    private Entity[] idEntity; //null si el id está libre
+    private int[] idGeneration;
+    private int[] idSlot; //-1 si la entidad todavia no se agrega
+    private int[] freeIds; //cola circular de los ids libres
+    private int freeHead;
+    private int freeCount;
+    private int idCount;
+
+    private final SpatialGrid grid; //las mismas entidades por zona del mapa
+
+    /*entidades que se van a eliminar o agregar en el siguiente update. Se usan sincronizadas con el store, porque
+    el update de otro store puede agregar o eliminar entidades de este desde otro hilo*/
+    private final ArrayList<Entity> nextToBeRemoved;
+    private final ArrayList<Entity> nextToBeAdded;
+    private final ArrayList<Entity> readded; //las que ya tenian handle y se volvieron a agregar, ver add
+
+    private boolean parallel;
+    private ForkJoinPool pool;
+    //entidades seguras y no seguras de este frame, en el orden de los slots
+    private Entity[] safe;
+    private int[] safeSlot;
+    private int safeCount;
+    private Entity[] unsafe;
+    private int[] unsafeSlot;
+    private int unsafeCount;
+    private ChunkTask[] tasks; //se reutilizan cada frame con reinitialize
+    private final ChunkRoot root;
+    private int chunkCount;
+    private ChunkBuffer[] buffers; //buffers[0] es para las entidades que no son seguras, los demás uno por bloque
+    private double frameDt;
+
+    EntityStore(Map map) {
+        entity = new Entity[64];
+        slotId = new int[64];
+        posX = new double[64];
+        posY = new double[64];
+        distance = new double[64];
+        visible = new boolean[64];
+
+        idEntity = new Entity[64];
+        idGeneration = new int[64];
+        idSlot = new int[64];
+        freeIds = new int[64];
+
+        grid = new SpatialGrid(map.m, map.n);
+        nextToBeRemoved = new ArrayList<>();
+        nextToBeAdded = new ArrayList<>();
+        readded = new ArrayList<>();
+
+        safe = new Entity[CHUNK_SIZE];
+        safeSlot = new int[CHUNK_SIZE];
+        unsafe = new Entity[CHUNK_SIZE];
+        unsafeSlot = new int[CHUNK_SIZE];
+        tasks = new ChunkTask[0];
+        root = new ChunkRoot();
+        buffers = new ChunkBuffer[] {new ChunkBuffer(this)};
+    }
+
+    void setParallel(boolean parallel, ForkJoinPool pool) {
+        this.parallel = parallel;
+        this.pool = pool;
+    }
+
+    /*el handle se da en el momento, pero la entidad se agrega hasta el siguiente update. Si la entidad ya está en el
+    store (o por agregarse) regresa el mismo handle, y si tambien se pidió eliminarla antes del siguiente update la
+    eliminación se cancela: las eliminaciones se aplican antes que las altas, asi que la entidad se queda*/
+    int add(Entity en) {
+        int handle;
+        synchronized (this) {
+            if (resolve(en.handle) == en) {
+                if (!en.readded) {
+                    en.readded = true;
+                    readded.add(en);
+                }
+                return en.handle;
+            }
+            handle = reserveId(en);
+            en.handle = handle;
+        }
+
+        ChunkBuffer b = CURRENT.get();
+        if (b != null && b.owner == this) b.added.add(en);
+        else synchronized (this) {
+            nextToBeAdded.add(en);
+        }
+        return handle;
+    }
+
+    void remove(Entity en) {
+        ChunkBuffer b = CURRENT.get();
+        if (b != null && b.owner == this) b.removed.add(en);
+        else synchronized (this) {
+            nextToBeRemoved.add(en);
+        }
+    }
+
+    //aplaza la acción hasta que terminen de actualizarse todas las entidades, fuera del update la ejecuta en el momento
+    static void defer(Runnable action) {
+        ChunkBuffer b = CURRENT.get();
+        if (b != null) b.defer(action);
+        else action.run();
+    }
+
+    private int reserveId(Entity en) {
+        int id;
+        if (freeCount > 0 && (freeCount >= MIN_FREE_IDS || idCount > ID_MASK)) {
+            id = freeIds[freeHead];
+            freeHead = (freeHead + 1) % freeIds.length;
+            freeCount--;
+        } else {
+            if (idCount > ID_MASK) throw new IllegalStateException("Demasiadas entidades");
+            if (idCount == idEntity.length) growIds();
+            id = idCount++;
+        }
+
+        idEntity[id] = en;
+        idSlot[id] = -1;
+        return idGeneration[id] << ID_BITS | id;
+    }
+
+    //libera el id, su generación avanza para que los handles que lo usaban dejen de ser validos
+    private void releaseId(int id) {
+        idEntity[id].handle = -1;
+        idEntity[id] = null;
+        idGeneration[id] = (idGeneration[id] + 1) & GENERATION_MASK;
+        freeIds[(freeHead + freeCount++) % freeIds.length] = id;
+    }
+
+    private void growIds() {
+        int capacity = idCount * 2;
+        idEntity = Arrays.copyOf(idEntity, capacity);
+        idGeneration = Arrays.copyOf(idGeneration, capacity);
+        idSlot = Arrays.copyOf(idSlot, capacity);
+
+        //la cola se copia en orden desde el inicio del array nuevo
+        int[] queue = new int[capacity];
+        for (int k = 0; k < freeCount; k++) queue[k] = freeIds[(freeHead + k) % freeIds.length];
+        freeIds = queue;
+        freeHead = 0;
+    }
+
+    //la entidad del handle, aunque todavia no se haya agregado, o null si el handle ya no es valido
+    private Entity resolve(int handle) {
+        if (handle < 0) return null;
+        int id = handle & ID_MASK;
+        if (id >= idCount || idGeneration[id] != handle >>> ID_BITS) return null;
+        return idEntity[id];
+    }
+
+    //tambien cancela las que todavia no se agregan
+    void remove(int handle) {
+        Entity en;
+        synchronized (this) {
+            en = resolve(handle);
+        }
+        if (en != null) remove(en);
+    }
+
+    /*la entidad del handle si está en el store, null si no se ha agregado o ya se eliminó. Se sincroniza porque
+    otro hilo puede estar agregando una entidad durante el update en paralelo*/
+    synchronized Entity get(int handle) {
+        Entity en = resolve(handle);
+        return en != null && idSlot[handle & ID_MASK] >= 0 ? en : null;
+    }
+
+    boolean contains(Entity en) {
+        return get(en.handle) == en;
+    }
+
+    int size() {
+        return count;
+    }
+
+    //LOS ARRAYS DE LOS SLOTS, se leen durante el render y pueden cambiar de array en cada update
+
+    Entity entityAt(int slot) {
+        return entity[slot];
+    }
+
+    double[] xs() {
+        return posX;
+    }
+
+    double[] ys() {
+        return posY;
+    }
+
+    double[] distances() {
+        return distance;
+    }
+
+    boolean[] visibility() {
+        return visible;
+    }
+
+    SpatialGrid grid() {
+        return grid;
+    }
+
+    //entidades a distancia radius o menos de (x, y)
+    ArrayList<Entity> getInRadius(double x, double y, double radius) {
+        ArrayList<Entity> inside = new ArrayList<>();
+        grid.forEachInRadius(x, y, radius, inside::add);
+        return inside;
+    }
+
+    ArrayList<Entity> copy() {
+        ArrayList<Entity> list = new ArrayList<>(count);
+        for (int s = 0; s < count; s++) list.add(entity[s]);
+        return list;
+    }
+
+    private void addSlot(Entity en) {
+        if (count == entity.length) {
+            int capacity = count * 2;
+            entity = Arrays.copyOf(entity, capacity);
+            slotId = Arrays.copyOf(slotId, capacity);
+            posX = Arrays.copyOf(posX, capacity);
+            posY = Arrays.copyOf(posY, capacity);
+            distance = Arrays.copyOf(distance, capacity);
+            visible = Arrays.copyOf(visible, capacity);
+        }
+
+        int s = count++;
+        int id = en.handle & ID_MASK;
+        entity[s] = en;
+        slotId[s] = id;
+        idSlot[id] = s;
+        sync(s);
+    }
+
+    //quita la entidad del slot s moviendo la del ultimo slot a su lugar
+    private void removeSlot(int s) {
+        int last = --count;
+        if (s != last) {
+            entity[s] = entity[last];
+            slotId[s] = slotId[last];
+            posX[s] = posX[last];
+            posY[s] = posY[last];
+            distance[s] = distance[last];
+            visible[s] = visible[last];
+            idSlot[slotId[s]] = s;
+        }
+        entity[last] = null;
+    }
+
+    //copia los datos de la entidad a los arrays
+    private void sync(int s) {
+        Entity en = entity[s];
+        posX[s] = en.x;
+        posY[s] = en.y;
+        distance[s] = en.getDistance();
+        visible[s] = en.visible;
+    }
+
+    void update(double dt) {
+        //elimina las entidades que se tienen que eliminar, las que aun no se agregaban solo liberan su id
+        synchronized (this) {
+            for (Entity i: nextToBeRemoved) {
+                if (resolve(i.handle) != i || i.readded) continue;
+
+                int id = i.handle & ID_MASK;
+                if (idSlot[id] >= 0) {
+                    removeSlot(idSlot[id]);
+                    grid.remove(i);
+                }
+                releaseId(id);
+            }
+
+            for (Entity i: readded) i.readded = false;
+            readded.clear();
+            nextToBeRemoved.clear();
+
+            //añade las que se tienen que añadir, si se eliminaron antes de agregarse ya no tienen handle
+            for (Entity i: nextToBeAdded) {
+                if (resolve(i.handle) != i || idSlot[i.handle & ID_MASK] >= 0) continue;
+                addSlot(i);
+                grid.add(i);
+            }
+            nextToBeAdded.clear();
+        }
+
+        //una vez añadidas se actualizan
+        if (parallel) {
+            updateParallel(dt);
+        } else {
+            ChunkBuffer serial = buffers[0];
+            CURRENT.set(serial);
+            try {
+                for (int s = 0; s < count; s++) {
+                    Entity i = entity[s];
+                    serial.slot = s;
+                    i.update(dt);
+                    i.updateDistance();
+                    grid.move(i); //en cuanto se mueve, para que las que siguen la encuentren en su celda nueva
+                }
+            } finally {
+                CURRENT.remove();
+            }
+            mergeLists(serial);
+            runDeferred(serial, 0);
+        }
+
+        /*las acciones aplazadas pueden mover a cualquier entidad, asi que la copia se toma al final. La lista no se
+        ordena, el raycaster ordena por distancia solo las entidades que quedan en pantalla*/
+        for (int s = 0; s < count; s++) {
+            sync(s);
+            grid.move(entity[s]);
+        }
+    }
+
+    /*primero las entidades seguras en paralelo, mientras tanto el SpatialGrid no cambia y todas ven las posiciones
+    del inicio del frame. Despues se mueven en el grid y se actualizan las demás en un solo hilo. Las acciones
+    aplazadas de todas se ejecutan al final*/
+    private void updateParallel(double dt) {
+        //se separan antes de empezar, por si una entidad cambia lo que regresa isParallelSafe en su update
+        safeCount = 0;
+        unsafeCount = 0;
+        for (int s = 0; s < count; s++) {
+            Entity i = entity[s];
+            if (i.isParallelSafe()) {
+                if (safeCount == safe.length) {
+                    safe = Arrays.copyOf(safe, safeCount * 2);
+                    safeSlot = Arrays.copyOf(safeSlot, safeCount * 2);
+                }
+                safeSlot[safeCount] = s;
+                safe[safeCount++] = i;
+            } else {
+                if (unsafeCount == unsafe.length) {
+                    unsafe = Arrays.copyOf(unsafe, unsafeCount * 2);
+                    unsafeSlot = Arrays.copyOf(unsafeSlot, unsafeCount * 2);
+                }
+                unsafeSlot[unsafeCount] = s;
+                unsafe[unsafeCount++] = i;
+            }
+        }
+
+        int chunks = (safeCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        chunkCount = chunks;
+        if (tasks.length < chunks) {
+            int oldCount = tasks.length;
+            tasks = Arrays.copyOf(tasks, chunks);
+            buffers = Arrays.copyOf(buffers, chunks + 1);
+            for (int k = oldCount; k < chunks; k++) {
+                tasks[k] = new ChunkTask(k);
+                buffers[k + 1] = new ChunkBuffer(this);
+            }
+        }
+
+        frameDt = dt;
+        if (chunks > 0) {
+            for (int k = 0; k < chunks; k++) tasks[k].reinitialize();
+            root.reinitialize();
+            pool.invoke(root);
+        }
+
+        for (int k = 0; k < safeCount; k++) grid.move(safe[k]);
+        for (int k = 0; k < safeCount; k++) safe[k] = null;
+
+        ChunkBuffer serial = buffers[0];
+        CURRENT.set(serial);
+        try {
+            for (int k = 0; k < unsafeCount; k++) {
+                Entity i = unsafe[k];
+                serial.slot = unsafeSlot[k];
+                i.update(dt);
+                i.updateDistance();
+                grid.move(i);
+                unsafe[k] = null;
+            }
+        } finally {
+            CURRENT.remove();
+        }
+
+        for (int k = 0; k < chunks; k++) mergeLists(buffers[k + 1]);
+        mergeLists(serial);
+        runDeferred(serial, chunks);
+    }
+
+    //pasa las entidades que se agregaron o eliminaron en un bloque a las listas del siguiente update
+    private void mergeLists(ChunkBuffer b) {
+        synchronized (this) {
+            nextToBeAdded.addAll(b.added);
+            nextToBeRemoved.addAll(b.removed);
+        }
+        b.added.clear();
+        b.removed.clear();
+    }
+
+    /*ejecuta las acciones aplazadas en el orden de los slots que las aplazaron. Las de los buffers de los bloques
+    (buffers[1] a buffers[chunks]) ya están en ese orden una tras otra, porque cada bloque es un tramo seguido de las
+    entidades seguras, y las de serial también, asi que basta con mezclar esas dos secuencias. La acción puede
+    aplazar otra, esa se ejecuta en el momento porque ya no hay buffer activo*/
+    private void runDeferred(ChunkBuffer serial, int chunks) {
+        int k = 1, i = 0, j = 0;
+        while (true) {
+            while (k <= chunks && i == buffers[k].deferred.size()) {
+                k++;
+                i = 0;
+            }
+            boolean safeLeft = k <= chunks;
+            boolean serialLeft = j < serial.deferred.size();
+            if (!safeLeft && !serialLeft) break;
+
+            if (serialLeft && (!safeLeft || serial.deferredSlot[j] < buffers[k].deferredSlot[i])) {
+                serial.deferred.get(j++).run();
+            } else {
+                buffers[k].deferred.get(i++).run();
+            }
+        }
+
+        serial.deferred.clear();
+        for (k = 1; k <= chunks; k++) buffers[k].deferred.clear();
+    }
+
+    //actualiza las entidades seguras de un bloque con su propio buffer
+    @SuppressWarnings("serial") //las tareas nunca se serializan
+    private final class ChunkTask extends RecursiveAction {
+        private final int index;
+
+        ChunkTask(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            ChunkBuffer b = buffers[index + 1];
+            int from = index * CHUNK_SIZE, to = Math.min(safeCount, from + CHUNK_SIZE);
+
+            CURRENT.set(b);
+            try {
+                for (int k = from; k < to; k++) {
+                    b.slot = safeSlot[k];
+                    safe[k].update(frameDt);
+                    safe[k].updateDistance();
+                }
+            } finally {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    //lanza los bloques de este frame y termina cuando todos terminaron
+    @SuppressWarnings("serial")
+    private final class ChunkRoot extends RecursiveAction {
+        @Override
+        protected void compute() {
+            for (int k = 1; k < chunkCount; k++) tasks[k].fork();
+            tasks[0].invoke();
+            for (int k = 1; k < chunkCount; k++) tasks[k].join();
+        }
+    }
+}
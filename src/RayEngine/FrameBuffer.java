@@ -0,0 +1,98 @@
+package RayEngine;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/*imagen del tamaño de la simulación en la que el renderizado por software escribe los pixeles directamente.
+En vez de hacer una llamada a drawImage por cada columna, cada columna se copia texel por texel al array
+de la imagen, y al final del frame la imagen completa se dibuja una sola vez en el canvas*/
+final class FrameBuffer {
+
+    final BufferedImage image;
+    final int[] pixels; //pixeles de la imagen, fila por fila
+
+    final int width;
+    final int height;
+
+    FrameBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    //copia las columnas from (incluida) a to (excluida) de una imagen del mismo tamaño, se usa para el fondo
+    void copyColumns(int[] src, int from, int to) {
+        int count = to - from;
+        for (int y = 0, row = 0; y < height; y++, row += width) {
+            System.arraycopy(src, row + from, pixels, row + from, count);
+        }
+    }
+
+    /*dibuja una columna de una textura de size x size texels guardada columna por columna a partir de la posición
+    offset de texels (ver Sprite), asi la columna completa es un bloque continuo. La columna se escala al
+    alto h y empezando en y (puede ser negativo si la columna es más alta que la pantalla). Si lut no es null cada
+    canal del texel pasa por la tabla de Shading que empieza en lutBase. Los texels con alpha menor a 128 no se
+    dibujan, para que se vea lo que está detras de los sprites*/
+    void drawColumn(int[] texels, int offset, int size, int column, int x, int y, int h, int[] lut, int lutBase) {
+        if (h <= 0) return;
+
+        int yStart = y < 0 ? 0 : y;
+        int yEnd = y + h > height ? height : y + h;
+
+        //posicion en la textura en punto fijo de 32 bits, para no perder precisión con columnas muy altas
+        long step = ((long) size << 32) / h;
+        drawSpan(texels, offset + column * size, (yStart - y) * step, step, x, yStart, yEnd, lut, lutBase);
+    }
+
+    /*dibuja un sprite completo de size x size pixeles que empieza en la columna start y la fila y, solo en las
+    columnas from a to (excluida). Cada columna se compara con la profundidad d del sprite, a menos que
+    unoccluded diga que ninguna pared lo tapa. Lo que es igual en todas las columnas (el paso en la textura, las
+    filas que quedan en pantalla) se calcula una vez, y la columna de la textura avanza con sumas en vez de
+    una división por columna*/
+    void drawBillboard(int[] texels, int offset, int texSize, int start, int y, int size, int from, int to,
+            double d, double[] depth, boolean unoccluded, int[] lut, int lutBase) {
+        if (size <= 0 || from >= to) return;
+
+        int yStart = y < 0 ? 0 : y;
+        int yEnd = y + size > height ? height : y + size;
+        long step = ((long) texSize << 32) / size;
+        long texPos = (yStart - y) * step;
+
+        //column = (j - start) * texSize / size, llevando el residuo de la división
+        int num = (from - start) * texSize;
+        int column = num / size;
+        int rest = num % size;
+
+        for (int j = from; j < to; j++) {
+            if (unoccluded || d <= depth[j]) {
+                drawSpan(texels, offset + column * texSize, texPos, step, j, yStart, yEnd, lut, lutBase);
+            }
+
+            rest += texSize;
+            while (rest >= size) {
+                rest -= size;
+                column++;
+            }
+        }
+    }
+
+    //copia a la columna x las filas yStart a yEnd, leyendo la textura desde base con la posición en punto fijo
+    private void drawSpan(int[] texels, int base, long texPos, long step, int x, int yStart, int yEnd,
+            int[] lut, int lutBase) {
+        for (int py = yStart, idx = yStart * width + x; py < yEnd; py++, idx += width) {
+            int texel = texels[base + (int) (texPos >>> 32)];
+            texPos += step;
+
+            if ((texel >>> 24) < 128) continue;
+
+            if (lut != null) {
+                texel = lut[lutBase + ((texel >> 16) & 0xFF)]
+                        | lut[lutBase + 256 + ((texel >> 8) & 0xFF)]
+                        | lut[lutBase + 512 + (texel & 0xFF)];
+            }
+            pixels[idx] = texel;
+        }
+    }
+}
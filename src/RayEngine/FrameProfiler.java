@@ -0,0 +1,204 @@
+package RayEngine;
+
+import java.util.Arrays;
+
+/*mide cuanto tarda cada fase del loop del engine. El promedio de fps esconde los tirones, un frame de 50ms entre
+cien de 5ms casi no mueve el promedio, por eso se guardan los tiempos de los ultimos frames (la ventana) y se
+calculan percentiles: p50 es el frame tipico, p99 y max son los tirones que se notan al jugar.
+
+Cada fase tiene un histograma de tamaño fijo que se actualiza al entrar y salir un frame de la ventana, asi que
+medir y consultar no crea ningun objeto. Las cubetas del histograma crecen exponencialmente (16 cubetas por cada
+potencia de 2), lo que da un error de como mucho 6% en los percentiles sin importar si el tiempo es de microsegundos
+o de segundos. El maximo si es exacto, porque se calcula con los tiempos guardados en la ventana*/
+public final class FrameProfiler {
+
+    //FASES
+    public static final int INPUT = 0;
+    public static final int PLAYER = 1;
+    public static final int ENTITIES = 2; //update y ordenamiento de las entidades
+    public static final int RAYCAST = 3;
+    public static final int WALLS = 4; //fondo y paredes
+    public static final int SPRITES = 5;
+    public static final int BANNERS = 6;
+    public static final int PRESENT = 7; //mostrar el frame en pantalla
+    public static final int DEBUG = 8; //vista 2d de la pantalla de debug
+    public static final int SLEEP = 9; //espera para llegar a los targetFPS
+    public static final int FRAME = 10; //frame completo
+    public static final int PHASES = 11;
+
+    private static final String[] NAMES = {
+        "input", "player", "entities", "raycast", "walls", "sprites",
+        "banners", "present", "debug", "sleep", "frame"
+    };
+
+    //los tiempos se guardan en unidades de 2^UNIT_SHIFT nanosegundos (256ns) para no gastar cubetas en tiempos minimos
+    private static final int UNIT_SHIFT = 8;
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final int window; //cantidad de frames que se toman en cuenta
+
+    private final long[][] samples; //tiempos de cada fase en los ultimos frames, como buffer circular
+    private final int[][] histogram;
+    private int head; //posición donde se guardará el siguiente frame
+    private int count; //frames guardados, hasta llegar a window
+
+    //tiempos del frame actual
+    private final long[] current;
+    private final long[] startedAt;
+
+    private boolean enabled;
+
+    public FrameProfiler(int window) {
+        this.window = window;
+        samples = new long[PHASES][window];
+        histogram = new int[PHASES][BUCKETS];
+        current = new long[PHASES];
+        startedAt = new long[PHASES];
+        enabled = true;
+    }
+
+    public FrameProfiler() {
+        this(600); //10 segundos a 60 fps
+    }
+
+
+    //MEDICION
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //marca el inicio de una fase, se pueden medir varias fases al mismo tiempo (por ejemplo FRAME y cualquier otra)
+    public void start(int phase) {
+        if (!enabled) return;
+        startedAt[phase] = System.nanoTime();
+    }
+
+    //suma el tiempo desde start a la fase, si una fase se mide varias veces en un frame los tiempos se acumulan
+    public void stop(int phase) {
+        if (!enabled) return;
+        current[phase] += System.nanoTime() - startedAt[phase];
+    }
+
+    //agrega un tiempo medido por fuera
+    public void add(int phase, long nanos) {
+        if (!enabled) return;
+        current[phase] += nanos;
+    }
+
+    //guarda los tiempos del frame actual en la ventana y empieza un frame nuevo
+    public void endFrame() {
+        if (!enabled) return;
+
+        for (int phase = 0; phase < PHASES; phase++) {
+            //si la ventana está llena, el frame más viejo sale del histograma
+            if (count == window) histogram[phase][bucket(samples[phase][head])]--;
+
+            samples[phase][head] = current[phase];
+            histogram[phase][bucket(current[phase])]++;
+            current[phase] = 0;
+        }
+
+        head = (head + 1) % window;
+        if (count < window) count++;
+    }
+
+    public void reset() {
+        for (int phase = 0; phase < PHASES; phase++) {
+            Arrays.fill(histogram[phase], 0);
+            current[phase] = 0;
+        }
+        head = 0;
+        count = 0;
+    }
+
+
+    //CONSULTAS, todos los tiempos en nanosegundos
+
+    //regresa el tiempo bajo el cual está el porcentaje p (0 a 100) de los frames de la ventana
+    public long percentile(int phase, double p) {
+        if (count == 0) return 0;
+
+        //cantidad de frames que tienen que quedar por debajo
+        long target = (long) Math.ceil(count * p / 100.0);
+        if (target < 1) target = 1;
+
+        int[] h = histogram[phase];
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += h[b];
+            
+            //la cubeta solo da un rango, asi que nunca regresa más que el maximo real
+            if (seen >= target) return Math.min(bucketTop(b), max(phase));
+        }
+        return max(phase);
+    }
+
+    public long p50(int phase) {
+        return percentile(phase, 50);
+    }
+
+    public long p95(int phase) {
+        return percentile(phase, 95);
+    }
+
+    public long p99(int phase) {
+        return percentile(phase, 99);
+    }
+
+    public long max(int phase) {
+        long max = 0;
+        for (int i = 0; i < count; i++) {
+            if (samples[phase][i] > max) max = samples[phase][i];
+        }
+        return max;
+    }
+
+    //tiempo de la fase en el ultimo frame guardado
+    public long last(int phase) {
+        if (count == 0) return 0;
+        return samples[phase][(head - 1 + window) % window];
+    }
+
+    public int getSampleCount() {
+        return count;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public static String getName(int phase) {
+        return NAMES[phase];
+    }
+
+
+    //HISTOGRAMA
+
+    /*las primeras 16 cubetas guardan un valor cada una. Despues, cada potencia de 2 se divide en 16 cubetas
+    del mismo tamaño, usando los 4 bits que siguen al bit más alto del valor*/
+    private static int bucket(long nanos) {
+        long u = nanos >>> UNIT_SHIFT;
+        if (u < SUB_BUCKETS) return (int) u;
+
+        int k = 63 - Long.numberOfLeadingZeros(u); //posición del bit más alto
+        int mantissa = (int) (u >>> (k - SUB_BITS)); //entre 16 y 31
+        int b = (k - SUB_BITS) * SUB_BUCKETS + mantissa;
+        return b < BUCKETS ? b : BUCKETS - 1;
+    }
+
+    //el tiempo más alto que puede caer en la cubeta b
+    private static long bucketTop(int b) {
+        if (b < SUB_BUCKETS) return (((long) b + 1) << UNIT_SHIFT) - 1;
+
+        int shift = b / SUB_BUCKETS - 1;
+        long mantissa = b % SUB_BUCKETS + SUB_BUCKETS;
+        return (((mantissa + 1) << shift) << UNIT_SHIFT) - 1;
+    }
+}
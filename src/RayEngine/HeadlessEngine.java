@@ -0,0 +1,232 @@
+package RayEngine;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/*version del engine que no crea ninguna ventana. Engine es un JFrame y crea un Canvas, un JDialog y un Robot, asi que no
+se puede usar en un servidor sin pantalla. HeadlessEngine actualiza el mapa, el jugador y las entidades de la misma forma,
+pero renderiza cada frame en una imagen del tamaño indicado. Como no hay input, la camara se mueve con un CameraScript.
+
+Las entidades reciben este HeadlessEngine como su EntityHost (Entity.getHost), asi pueden agregar, eliminar y
+buscar entidades igual que con Engine. El campo e de Entity queda en null, porque no hay un Engine*/
+public final class HeadlessEngine implements EntityHost {
+    
+    //COMPONENTES
+    private final Player p;
+    private final Map map;
+    
+    private final EntityStore entities;
+    private final ArrayList<Banner> banners;
+    private final RayCaster raycaster;
+    
+    //imagen donde se renderiza cada frame
+    private final BufferedImage frame;
+    private final int width;
+    private final int height;
+    
+    private CameraScript camera;
+    
+    //ATRIBUTOS
+    private int frameCount;
+    private long lastUpdateNanos; //duracion del ultimo update (camara, entidades y rayos)
+    private long lastRenderNanos; //duracion del ultimo render
+    
+    
+    public HeadlessEngine(Player player, Map map, int width, int height) {
+        this.width = width;
+        this.height = height;
+        frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        
+        //player
+        this.p = player;
+        p.addMap(map);
+        
+        //mapa
+        this.map = map;
+        
+        entities = new EntityStore(map);
+        banners = new ArrayList<>();
+        
+        raycaster = new RayCaster(p, map, entities, banners, new Background(Color.black, Color.black));
+        
+        frameCount = 0;
+    }
+    
+    
+    //RAYCASTER
+    
+    public void setFOV(int FOV) {
+        raycaster.setFOV(FOV);
+    }
+    
+    public void setRaysToCast(int rays) {
+        raycaster.setRaysToCast(rays);
+    }
+    
+    public void setCameraPlane(boolean cameraPlane) {
+        raycaster.setCameraPlane(cameraPlane);
+    }
+    
+    public void setParallelRendering(boolean parallel) {
+        raycaster.setParallel(parallel);
+    }
+    
+    /*actualiza en varios hilos las entidades que regresan true en isParallelSafe, usando el pool comun de java.
+    Las demás se siguen actualizando en el hilo del juego*/
+    public void setParallelEntities(boolean parallel) {
+        entities.setParallel(parallel, ForkJoinPool.commonPool());
+    }
+    
+    public void setSoftwareRendering(boolean software) {
+        raycaster.setSoftwareRendering(software);
+    }
+    
+    public void setAspectRatio(Dimension d) {
+        raycaster.setAspectRatio(d.width, d.height);
+    }
+    
+    public void setBackground(Background bg) {
+        raycaster.setBackground(bg);
+    }
+    
+    public void addBanner(Banner b) {
+        if (banners.contains(b)) return;
+        banners.add(b);
+        b.setZBuffer(banners.size() - 1);
+    }
+    
+    public void setCameraScript(CameraScript camera) {
+        this.camera = camera;
+    }
+    
+    
+    //ENTIDADES
+    
+    //la entidad se agrega al inicio del siguiente update
+    public void addEntity(Entity en) {
+        spawnEntity(en);
+    }
+    
+    /*igual que addEntity pero regresa el handle de la entidad, que ya sirve para eliminarla o para revisar con
+    isAlive si sigue en el juego. Si la entidad ya estaba agregada regresa su mismo handle*/
+    public int spawnEntity(Entity en) {
+        en.addRef(this, p, map);
+        return entities.add(en);
+    }
+    
+    public void removeEntity(Entity en) {
+        entities.remove(en);
+    }
+    
+    public void removeEntity(int handle) {
+        entities.remove(handle);
+    }
+    
+    //la entidad del handle, o null si todavia no se agrega o ya se eliminó
+    public Entity getEntity(int handle) {
+        return entities.get(handle);
+    }
+    
+    public boolean isAlive(int handle) {
+        return entities.get(handle) != null;
+    }
+    
+    //entidades a distancia radius o menos del jugador
+    public ArrayList<Entity> getEntitiesInRadius(double radius) {
+        return entities.getInRadius(p.getX(), p.getY(), radius);
+    }
+    
+    public ArrayList<Entity> getEntitiesInRadius(double x, double y, double radius) {
+        return entities.getInRadius(x, y, radius);
+    }
+    
+    public ArrayList<Entity> getEntities() {
+        return entities.copy();
+    }
+    
+    public boolean containsEntity(Entity en) {
+        return entities.contains(en);
+    }
+    
+    //si la entidad se dibujó en el ultimo frame, aunque sea una parte
+    public boolean isOnScreen(Entity en) {
+        return raycaster.isOnScreen(en);
+    }
+    
+    //si algún rayo del ultimo frame cruzó la casilla, sirve para saber si un cuarto está a la vista
+    public boolean isTileVisible(int row, int col) {
+        return raycaster.isTileVisible(row, col);
+    }
+    
+    public SpatialGrid getSpatialGrid() {
+        return entities.grid();
+    }
+    
+    
+    //UPDATE Y RENDER
+    
+    //avanza la simulación dt segundos: mueve la camara, actualiza las entidades y castea los rayos
+    public void update(double dt) {
+        long start = System.nanoTime();
+        
+        if (camera != null) camera.update(p, frameCount, dt);
+        entities.update(dt);
+        raycaster.update(dt);
+        
+        lastUpdateNanos = System.nanoTime() - start;
+    }
+    
+    //renderiza el estado actual en la imagen del engine y la regresa. La imagen se reutiliza en cada frame
+    public BufferedImage render() {
+        long start = System.nanoTime();
+        
+        Graphics2D g = frame.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        raycaster.renderSimulation3D(g, width, height);
+        g.dispose();
+        
+        frameCount++;
+        lastRenderNanos = System.nanoTime() - start;
+        return frame;
+    }
+    
+    //update y render de un frame completo
+    public BufferedImage step(double dt) {
+        update(dt);
+        return render();
+    }
+    
+    //renderiza la cantidad de frames indicada con un dt fijo y regresa el tiempo promedio por frame en nanosegundos
+    public double run(int frames, double dt) {
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) step(dt);
+        return (System.nanoTime() - start) / (double) frames;
+    }
+    
+    
+    public int getFrameCount() {
+        return frameCount;
+    }
+    
+    public long getLastUpdateNanos() {
+        return lastUpdateNanos;
+    }
+    
+    public long getLastRenderNanos() {
+        return lastRenderNanos;
+    }
+    
+    public BufferedImage getFrame() {
+        return frame;
+    }
+    
+    public Player getPlayer() {
+        return p;
+    }
+    
+    public Map getMap() {
+        return map;
+    }
+}
@@ -3,31 +3,83 @@ package RayEngine;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 
 public class Map {
     
-    public final int[][] map;
+    /*casillas del mapa en un solo array, fila por fila: la casilla (i, j) está en i * n + j. Leer una casilla es
+    un solo acceso a memoria, sin pasar por el array de cada fila. El ancho de cada casilla (byte, short o int)
+    depende de los valores guardados, ver TileGrid*/
+    private TileGrid tiles;
+    
+    /*capa opcional con un bit por casilla que indica si es pared. Con ella el raycaster y las colisiones solo leen
+    un bit por casilla, en mapas grandes eso cabe mucho mejor en cache que los valores completos. Es null si no se usa*/
+    private long[] wallLayer;
+    
+    //distancia de cada casilla a la pared más cercana, para que los rayos crucen zonas vacias de un salto. Es null si no se usa
+    private DistanceField distanceField;
     
     public final int m;
     public final int n;
     
-    private final HashMap<Integer, Sprite> behaviors;
+    //los mapas más grandes que esto no se imprimen completos en consola
+    private static final int PRINT_LIMIT = 64;
+    
+    //valor de casilla más alto al que se le puede agregar comportamiento, ver behaviors
+    public static final int MAX_BEHAVIOR_VALUE = 0xFFFF;
+    
+    /*comportamiento de cada valor de casilla, indexado directamente por el valor. walls tiene un bit por valor
+    que indica si es pared, asi revisar una casilla no tiene que convertir el valor a Integer ni buscarlo en un
+    HashMap. Los arrays crecen hasta el valor más alto que tiene comportamiento, por eso ese valor no puede pasar de
+    MAX_BEHAVIOR_VALUE (las casillas si pueden guardar valores más grandes, pero nunca son pared)*/
+    private Sprite[] behaviors;
+    private long[] walls;
+    
+    //aumenta cada vez que cambia una casilla o un comportamiento, asi el raycaster sabe si puede reutilizar los rayos del frame anterior
+    private int modCount;
     
     public Map(String path) {
-        map = openMapFile(path);
-        m = map.length;
-        n = map[0].length;
+        this(parseMapFile(path));
+    }
+    
+    //la matriz se copia, el mapa no guarda ninguna referencia a ella
+    public Map(int[][] grid) {
+        this(grid.length, grid[0].length, copyGrid(grid));
+    }
+    
+    //mapa vacio de m filas por n columnas, para llenarlo con setTile (por ejemplo en niveles generados)
+    public Map(int m, int n) {
+        this(m, n, new TileGrid.Bytes(checkSize(m, n)));
+    }
+    
+    private Map(MapParser parsed) {
+        this(parsed.m, parsed.n, parsed.tiles);
+    }
+    
+    //también lo usa MapFile con las casillas de un mapa binario
+    Map(int m, int n, TileGrid tiles) {
+        this.m = m;
+        this.n = n;
+        this.tiles = tiles;
         
-        behaviors = new HashMap<>();
+        behaviors = new Sprite[64];
+        walls = new long[1];
         this.addTileBehavior(1, new Sprite(Color.white));
         
         printMap();
     }
     
-    public Map(int[][] grid) {
+    private static int checkSize(int m, int n) {
+        if (m <= 0 || n <= 0 || (long) m * n > Integer.MAX_VALUE) {
+            System.out.println("Mapa invalido, tamaño de " + m + " x " + n + ".");
+            System.exit(0);
+        }
+        return m * n;
+    }
+    
+    //copia la matriz al array plano, con el ancho más pequeño en el que caben todos sus valores
+    private static TileGrid copyGrid(int[][] grid) {
         int gridN = grid[0].length;
         
         for (int[] i: grid) {
@@ -37,41 +89,54 @@ public class Map {
             }
         }
         
-        map = grid;
-        m = map.length;
-        n = map[0].length;
-        this.behaviors = new HashMap<>();
-        this.addTileBehavior(1, new Sprite(Color.white));
+        int min = 0, max = 0;
+        for (int[] row: grid) {
+            for (int value: row) {
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+        }
         
-        printMap();
+        TileGrid tiles = TileGrid.forRange(checkSize(grid.length, gridN), min, max);
+        for (int i = 0, index = 0; i < grid.length; i++) {
+            for (int j = 0; j < gridN; j++, index++) {
+                tiles.set(index, grid[i][j]);
+            }
+        }
+        return tiles;
     }
     
     private void printMap() {System.out.println("imprimiendo mapa");
-        for (int[] i: map) {
-            for (int j: i) {
-                System.out.printf("%d ", j);
+        if (m > PRINT_LIMIT || n > PRINT_LIMIT) {
+            System.out.println(m + " x " + n + " casillas, " + tiles.bytesPerTile() + " bytes por casilla");
+            return;
+        }
+        
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                System.out.printf("%d ", tiles.get(i * n + j));
             }
             System.out.println();
         }
     }
     
-    protected final int[][] openMapFile(String path) {
-        int[][] result = new int[1][1];
+    private static MapParser parseMapFile(String path) {
+        MapParser result = null;
         //intenta abrir el archivo del mapa
         try{
-            InputStream in = getClass().getResourceAsStream(path);
+            InputStream in = Map.class.getResourceAsStream(path);
             
             if (in == null) {
                 System.out.println("No se encontró el archivo de mapa: " + path);
                 System.exit(0);
             }
             
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            
-            result = readMapFile(reader);
+            try (Reader reader = new InputStreamReader(in)) {
+                result = MapParser.parse(reader);
+            }
             
-            //readMapFile regresa matrices de 1x1 cuando hay casos invalidos, por lo que termina el programa si el mapa no es valido.
-            if (result.length == 1 && result[0].length == 1) {
+            //igual que antes, los mapas de 1x1 tampoco se aceptan
+            if (result == null || (result.m == 1 && result.n == 1)) {
                 System.out.println("Mapa invalido.");
                 System.exit(0);
             }
@@ -81,91 +146,199 @@ public class Map {
             System.exit(0);
         }
         
-        //convertir el archivo a un mapa
         return result;
     }
     
+    /*antes el mapa se guardaba en el campo publico int[][] map, que ya no existe. Este metodo regresa una copia de las
+    casillas con esa forma para el codigo que la usaba, cambiar la copia no cambia el mapa. Para leer o cambiar casillas
+    se usan getTile y setTile, que no copian todo el mapa*/
+    @Deprecated
+    public int[][] getMap() {
+        return toArray(tiles, m, n);
+    }
+    
+    /*lee el archivo de mapa a una matriz, igual que antes de que el constructor usara MapParser. Termina el programa
+    si el mapa no es valido*/
+    @Deprecated
+    protected final int[][] openMapFile(String path) {
+        MapParser parsed = parseMapFile(path);
+        return toArray(parsed.tiles, parsed.m, parsed.n);
+    }
+    
+    //lee un mapa de texto a una matriz, regresa una matriz de 1x1 si el mapa no es valido
     protected final int[][] readMapFile(BufferedReader reader) {
-        //lee la primera linea
-        String line;
+        MapParser parsed;
         try {
-            line = reader.readLine();
+            parsed = MapParser.parse(reader);
         } catch (IOException ex) {
             return new int[1][1];
         }
-        if (line == null) return new int[1][1];
-        
-        int n1 = line.split(" ").length;//columnas
-        ArrayList<String> lines = new ArrayList<>();
+        if (parsed == null) return new int[1][1];
         
-        //continua leyendo el resto, si alguna linea tiene un no de elementos que la primera regresa
-        while(line != null) {
-            if (line.split(" ").length != n1) {
-                System.out.println("Mapa invalido, ineas de diferentes longitudes.");
-                return new int[1][1];
-            }
-            
-            lines.add(line);
-            try {
-                line = reader.readLine();
-            } catch (IOException ex) {
-                return new int[1][1];
+        return toArray(parsed.tiles, parsed.m, parsed.n);
+    }
+    
+    private static int[][] toArray(TileGrid tiles, int m, int n) {
+        int[][] result = new int[m][n];
+        for (int i = 0, index = 0; i < m; i++) {
+            for (int j = 0; j < n; j++, index++) {
+                result[i][j] = tiles.get(index);
             }
         }
+        return result;
+    }
+    
+    
+    //le indica al mapa como comportarse cuando una pared
+    public final void addTileBehavior(int tileValue, String sprPath) {
+        addTileBehavior(tileValue, Sprite.load(sprPath));
+    }
+    
+    public final void addTileBehavior(int tileValue, Sprite spr) {
+        if (tileValue <= 0) return; //no se le puede agregar comportamiento a las casillas en 0 ni a valores negativos
+        if (tileValue > MAX_BEHAVIOR_VALUE) {
+            throw new IllegalArgumentException("Valor de casilla demasiado grande para un comportamiento: " + tileValue);
+        }
         
+        if (tileValue >= behaviors.length) {
+            behaviors = Arrays.copyOf(behaviors, Math.max(tileValue + 1, behaviors.length * 2));
+            walls = Arrays.copyOf(walls, (behaviors.length + 63) >>> 6);
+        }
         
-        //ahora con la lista empieza a convertirla a ints
-        int[][] result = new int[lines.size()][n1];
+        boolean wasWall = isBehaviorDefined(tileValue);
+        behaviors[tileValue] = spr;
+        if (spr != null) walls[tileValue >>> 6] |= 1L << tileValue;
+        else walls[tileValue >>> 6] &= ~(1L << tileValue);
         
-        for (int i = 0; i < result.length; i++) {
-            String[] lineStr = lines.get(i).split("\\s+");
-            
-            for (int j = 0; j < lineStr.length; j++) {
-                try {
-                    result[i][j] = Integer.parseInt(lineStr[j]);
-                } catch(NumberFormatException E) {
-                    return new int[1][1];
-                }
-            }
+        if (wasWall != (spr != null)) {
+            if (wallLayer != null) buildWallLayer();
+            if (distanceField != null) distanceField = new DistanceField(this);
         }
+        modCount++;
+    }
+    
+    //cambia el valor de una casilla, si no cabe en el ancho actual las casillas se copian a uno más grande
+    public void setTile(int m, int n, int value) {
+        int index = m * this.n + n;
+        if (tiles.get(index) == value) return;
         
-        return result;
+        boolean wasWall = isWallIndex(index);
+        if (!tiles.fits(value)) tiles = tiles.widen(value);
+        tiles.set(index, value);
+        
+        if (wallLayer != null) {
+            if (isBehaviorDefined(value)) wallLayer[index >>> 6] |= 1L << index;
+            else wallLayer[index >>> 6] &= ~(1L << index);
+        }
+        
+        if (distanceField != null && wasWall != isBehaviorDefined(value)) distanceField.update(this, m, n);
+        modCount++;
     }
     
+    public int getTile(int m, int n) {
+        return tiles.get(m * this.n + n);
+    }
     
-    //le indica al mapa como comportarse cuando una pared
-    public final void addTileBehavior(int tileValue, String sprPath) {
-        if (tileValue == 0) return; //no se le puede agregar comportamiento a las casillas en 0
-        behaviors.put(tileValue, new Sprite(sprPath));
+    /*carga las casillas cercanas a la posición x, y (en pixeles) y descarta las lejanas. Solo tiene efecto en mapas
+    binarios abiertos con MapFile, el raycaster lo llama cada frame con la posición del jugador*/
+    public void streamAround(double x, double y) {
+        if (!(tiles instanceof ChunkedTileGrid)) return;
+        
+        int tileX = (int) Math.floor(x / Engine.TILE_SIZE);
+        int tileY = (int) Math.floor(y / Engine.TILE_SIZE);
+        ((ChunkedTileGrid) tiles).streamAround(tileY, tileX);
     }
     
-    public final void addTileBehavior(int tileValue, Sprite spr) {
-        if (tileValue == 0) return; //no se le puede agregar comportamiento a las casillas en 0
-        behaviors.put(tileValue, spr);
+    //cuantos chunks alrededor del jugador se mantienen cargados en mapas binarios
+    public void setStreamingRadius(int chunks) {
+        if (tiles instanceof ChunkedTileGrid) ((ChunkedTileGrid) tiles).setLoadRadius(chunks);
+    }
+    
+    /*activa o desactiva la capa de un bit por casilla que indica las paredes. Construirla lee todas las casillas,
+    asi que en mapas binarios carga el mapa completo*/
+    public void setWallLayer(boolean enabled) {
+        if (enabled == (wallLayer != null)) return;
+        
+        if (enabled) {
+            wallLayer = new long[(int) (((long) m * n + 63) >>> 6)];
+            buildWallLayer();
+        } else {
+            wallLayer = null;
+        }
+    }
+    
+    public boolean hasWallLayer() {
+        return wallLayer != null;
+    }
+    
+    /*activa o desactiva el campo de distancias que usa el raycaster para saltar las zonas vacias del mapa. Ocupa un
+    byte por casilla y se actualiza solo con setTile, conviene en mapas abiertos donde los rayos cruzan muchas
+    casillas vacias. Igual que la capa de paredes, en mapas binarios lee el mapa completo*/
+    public void setDistanceField(boolean enabled) {
+        if (enabled == (distanceField != null)) return;
+        distanceField = enabled ? new DistanceField(this) : null;
+        modCount++;
+    }
+    
+    public boolean hasDistanceField() {
+        return distanceField != null;
+    }
+    
+    //distancias por casilla, null si el campo no está activo
+    byte[] getDistances() {
+        return distanceField == null ? null : distanceField.dist;
+    }
+    
+    //bytes por casilla del almacenamiento actual (1, 2 o 4)
+    public int getBytesPerTile() {
+        return tiles.bytesPerTile();
+    }
+    
+    private void buildWallLayer() {
+        Arrays.fill(wallLayer, 0);
+        for (int i = 0; i < tiles.size; i++) {
+            if (isBehaviorDefined(tiles.get(i))) wallLayer[i >>> 6] |= 1L << i;
+        }
+    }
+    
+    //revisa si la casilla con el indice i * n + j es pared, es la consulta más interna del raycaster
+    boolean isWallIndex(int index) {
+        if (wallLayer != null) return (wallLayer[index >>> 6] & (1L << index)) != 0;
+        return isBehaviorDefined(tiles.get(index));
+    }
+    
+    //valor de la casilla con el indice i * n + j
+    int getTileIndex(int index) {
+        return tiles.get(index);
+    }
+    
+    public int getModCount() {
+        return modCount;
     }
     
     //regersa una referencia al sprite del tipo de casilla indicada, si no tiene regresa null
     public final Sprite getBehaviorSprite(int key) {
-        if (behaviors.containsKey(key)) {
-            return behaviors.get(key);
-        }
-        return null;
+        if (key < 0 || key >= behaviors.length) return null;
+        return behaviors[key];
+    }
+    
+    //cantidad de valores de casilla que pueden tener comportamiento, de 0 a getBehaviorCount() - 1
+    int getBehaviorCount() {
+        return behaviors.length;
     }
     
+    //los valores negativos también quedan fuera, porque key >>> 6 es enorme
     public boolean isBehaviorDefined(int key) {
-        return behaviors.containsKey(key);
+        int word = key >>> 6;
+        return word < walls.length && (walls[word] & (1L << key)) != 0;
     }
     
     
     //METODOS DE DIBUJO
     
     public void renderMap(Graphics2D g) {
-    int[][] data = map; // matriz del mapa
-
         for (int i = 0; i < this.m; i++) {
             for (int j = 0; j < this.n; j++) {
-                int value = data[i][j];
-                
                 //blanco para paredes, negro para espacio vacio
                 if (this.isWall(i, j)) {
                     g.setColor(Color.white);
@@ -193,11 +366,9 @@ public class Map {
     }
     
     public void renderMap2(Graphics2D g, Color floorColor) {
-    int[][] data = map; // matriz del mapa
-
         for (int i = 0; i < this.m; i++) {
             for (int j = 0; j < this.n; j++) {
-                int value = data[i][j];
+                int value = tiles.get(i * n + j);
                 
                 //casillas vacias
                 if (!this.isWall(i, j)) {
@@ -212,7 +383,7 @@ public class Map {
                     continue;
                 }
 
-                Sprite spr = behaviors.get(value);
+                Sprite spr = behaviors[value];
                 
                 //dibuja textura de la pared
                 spr.drawSprite(g,
@@ -235,20 +406,168 @@ public class Map {
     
     //checa si las posiciones recibidas quedan dentro de una pared
     public boolean insideOfWall(double x, double y) {
-        Position p = getTile(x, y);
-        if (p.m >= 0 && p.n >= 0 && p.m < m && p.n < n) {
-            return isBehaviorDefined(map[p.m][p.n]);
-            //return map[p.m][p.n] == 1;
+        //igual que getTile pero sin crear un Position, se llama varias veces por frame en las colisiones
+        int tileX = (int) Math.floor(x / Engine.TILE_SIZE);
+        int tileY = (int) Math.floor(y / Engine.TILE_SIZE);
+        
+        if (tileY >= 0 && tileX >= 0 && tileY < m && tileX < n) {
+            return isWallIndex(tileY * n + tileX);
         }
         return false;
     }
     
     public boolean isWall(int m, int n) {
-        return behaviors.containsKey(map[m][n]);
+        return isWallIndex(m * this.n + n);
+    }
+
+
+    /*COLISIONES
+
+    Los cuerpos que se mueven son circulos y las paredes son las casillas completas. El movimiento se hace primero
+    en x y luego en y, asi cuando choca en un eje puede seguir en el otro y se desliza por la pared. Cada eje se
+    barre completo: se revisan todas las casillas por las que pasa el circulo en el trayecto y se avanza hasta
+    tocar la más cercana, en vez de revisar solo la posición final. Por eso un movimiento grande no atraviesa
+    paredes delgadas, y el cuerpo queda pegado a la pared en vez de detenerse a una distancia que depende de la
+    velocidad. Las casillas fuera del mapa no son pared, igual que en insideOfWall*/
+
+    //tolerancia para que un circulo que toca la pared exactamente pueda deslizarse por ella
+    private static final double CONTACT_EPSILON = 1e-9;
+
+    //checa si el circulo de radio radius en (x, y) se encima con alguna pared
+    public boolean overlapsWall(double x, double y, double radius) {
+        double r2 = radius * radius - CONTACT_EPSILON;
+        int row0 = Math.max(0, tileOf(y - radius)), row1 = Math.min(m - 1, tileOf(y + radius));
+        int col0 = Math.max(0, tileOf(x - radius)), col1 = Math.min(n - 1, tileOf(x + radius));
+
+        for (int row = row0; row <= row1; row++) {
+            double dy = gap(y, row);
+            for (int col = col0; col <= col1; col++) {
+                double dx = gap(x, col);
+                if (dx * dx + dy * dy < r2 && isWallIndex(row * n + col)) return true;
+            }
+        }
+        return false;
+    }
+
+    //x final del circulo en (x, y) al moverse dx en horizontal, se detiene al tocar una pared
+    public double sweepX(double x, double y, double dx, double radius) {
+        if (dx == 0) return x;
+
+        double r2 = radius * radius - CONTACT_EPSILON;
+        double target = x + dx;
+        int row0 = Math.max(0, tileOf(y - radius)), row1 = Math.min(m - 1, tileOf(y + radius));
+
+        if (dx > 0) {
+            //solo las casillas que empiezan delante del centro, con las que ya se encima no lo detienen
+            int col0 = Math.max(0, tileOf(x) + 1), col1 = Math.min(n - 1, tileOf(target + radius));
+            for (int row = row0; row <= row1; row++) {
+                double dy = gap(y, row);
+                if (dy * dy >= r2) continue;
+                double reach = Math.sqrt(radius * radius - dy * dy); //distancia horizontal a la que toca la casilla
+
+                for (int col = col0; col <= col1; col++) {
+                    double limit = col * Engine.TILE_SIZE - reach;
+                    if (limit >= target) break; //las siguientes columnas están más lejos
+                    if (isWallIndex(row * n + col)) {
+                        target = limit;
+                        break;
+                    }
+                }
+            }
+            return Math.max(x, target);
+        }
+
+        int col0 = Math.max(0, tileOf(target - radius)), col1 = Math.min(n - 1, tileOf(x) - 1);
+        for (int row = row0; row <= row1; row++) {
+            double dy = gap(y, row);
+            if (dy * dy >= r2) continue;
+            double reach = Math.sqrt(radius * radius - dy * dy);
+
+            for (int col = col1; col >= col0; col--) {
+                double limit = (col + 1) * Engine.TILE_SIZE + reach;
+                if (limit <= target) break;
+                if (isWallIndex(row * n + col)) {
+                    target = limit;
+                    break;
+                }
+            }
+        }
+        return Math.min(x, target);
+    }
+
+    //igual que sweepX pero en vertical
+    public double sweepY(double x, double y, double dy, double radius) {
+        if (dy == 0) return y;
+
+        double r2 = radius * radius - CONTACT_EPSILON;
+        double target = y + dy;
+        int col0 = Math.max(0, tileOf(x - radius)), col1 = Math.min(n - 1, tileOf(x + radius));
+
+        if (dy > 0) {
+            int row0 = Math.max(0, tileOf(y) + 1), row1 = Math.min(m - 1, tileOf(target + radius));
+            for (int col = col0; col <= col1; col++) {
+                double dx = gap(x, col);
+                if (dx * dx >= r2) continue;
+                double reach = Math.sqrt(radius * radius - dx * dx);
+
+                for (int row = row0; row <= row1; row++) {
+                    double limit = row * Engine.TILE_SIZE - reach;
+                    if (limit >= target) break;
+                    if (isWallIndex(row * n + col)) {
+                        target = limit;
+                        break;
+                    }
+                }
+            }
+            return Math.max(y, target);
+        }
+
+        int row0 = Math.max(0, tileOf(target - radius)), row1 = Math.min(m - 1, tileOf(y) - 1);
+        for (int col = col0; col <= col1; col++) {
+            double dx = gap(x, col);
+            if (dx * dx >= r2) continue;
+            double reach = Math.sqrt(radius * radius - dx * dx);
+
+            for (int row = row1; row >= row0; row--) {
+                double limit = (row + 1) * Engine.TILE_SIZE + reach;
+                if (limit <= target) break;
+                if (isWallIndex(row * n + col)) {
+                    target = limit;
+                    break;
+                }
+            }
+        }
+        return Math.min(y, target);
+    }
+
+    /*mueve el circulo de radio radius de (x, y) por (dx, dy) deslizandose por las paredes y deja el resultado en
+    out. Regresa true si chocó con alguna pared*/
+    public boolean move(double x, double y, double dx, double dy, double radius, Collision out) {
+        double newX = sweepX(x, y, dx, radius);
+        double newY = sweepY(newX, y, dy, radius);
+
+        out.x = newX;
+        out.y = newY;
+        out.hitX = newX != x + dx;
+        out.hitY = newY != y + dy;
+        return out.hitX || out.hitY;
+    }
+
+    private static int tileOf(double coord) {
+        return (int) Math.floor(coord / Engine.TILE_SIZE);
+    }
+
+    //distancia de la coordenada a la casilla número tile en ese eje, 0 si está dentro de ella
+    private static double gap(double coord, int tile) {
+        double start = tile * (double) Engine.TILE_SIZE;
+        if (coord < start) return start - coord;
+        double end = start + Engine.TILE_SIZE;
+        return coord > end ? coord - end : 0;
     }
     
     public int getWallValue(double x, double y) {
-        Position p = getTile(x, y);
-        return map[p.m][p.n];
+        int tileX = (int) Math.floor(x / Engine.TILE_SIZE);
+        int tileY = (int) Math.floor(y / Engine.TILE_SIZE);
+        return tiles.get(tileY * n + tileX);
     }
 }
\ No newline at end of file
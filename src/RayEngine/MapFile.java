@@ -0,0 +1,221 @@
+package RayEngine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*formato binario de mapas. A diferencia de los mapas de texto, que se leen completos antes de empezar, el archivo
+se mapea en memoria con FileChannel.map y las casillas se leen por chunks solo cuando se necesitan (ver ChunkedTileGrid).
+
+Estructura del archivo (big endian):
+    0   int     MAGIC
+    4   short   VERSION
+    6   byte    bytes por casilla (1, 2 o 4)
+    7   byte    sin uso
+    8   int     m (filas)
+    12  int     n (columnas)
+    16  int     tamaño de los chunks, potencia de 2
+    20  int     cantidad de entidades
+    24  long    posición de la capa de entidades (0 si no hay)
+    32          casillas, chunk por chunk y fila por fila dentro de cada chunk. Los chunks del borde se rellenan con 0
+                hasta tener el tamaño completo, asi la posición de cualquier chunk es k * chunkSize^2 * bytes por casilla
+    ...         entidades, cada una un int con el tipo y dos floats con x, y en pixeles
+
+El tipo de las entidades lo define el juego, el mapa solo guarda donde aparece cada una*/
+public final class MapFile {
+
+    public static final int MAGIC = 0x524D4150; //"RMAP"
+    public static final short VERSION = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTITY_SIZE = 12;
+
+    private final int m;
+    private final int n;
+    private final int chunkSize;
+    private final int bytesPerTile;
+
+    private final ByteBuffer tileData;
+    private final ByteBuffer entityData; //null si no hay capa de entidades
+    private final int entityCount;
+
+    //abre el archivo, solo lee la cabecera. Las casillas y entidades se leen del archivo mapeado cuando se usan
+    public MapFile(Path path) throws IOException {
+        MappedByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            //el mapeo sigue siendo valido despues de cerrar el canal
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (file.capacity() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+            throw new IOException("No es un mapa binario: " + path);
+        }
+        if (file.getShort(4) != VERSION) {
+            throw new IOException("Versión de mapa no soportada: " + file.getShort(4));
+        }
+
+        bytesPerTile = file.get(6);
+        m = file.getInt(8);
+        n = file.getInt(12);
+        chunkSize = file.getInt(16);
+        entityCount = file.getInt(20);
+        long entityOffset = file.getLong(24);
+
+        if (bytesPerTile != 1 && bytesPerTile != 2 && bytesPerTile != 4) {
+            throw new IOException("Mapa invalido, " + bytesPerTile + " bytes por casilla.");
+        }
+        if (m <= 0 || n <= 0 || chunkSize <= 0 || Integer.bitCount(chunkSize) != 1) {
+            throw new IOException("Mapa invalido, tamaño de " + m + " x " + n + " con chunks de " + chunkSize + ".");
+        }
+
+        long tileBytes = tileBytes(m, n, chunkSize, bytesPerTile);
+        if (HEADER_SIZE + tileBytes > file.capacity()) throw new IOException("Mapa incompleto: " + path);
+        tileData = file.slice(HEADER_SIZE, (int) tileBytes);
+
+        if (entityCount > 0) {
+            if (entityOffset + (long) entityCount * ENTITY_SIZE > file.capacity()) {
+                throw new IOException("Capa de entidades incompleta: " + path);
+            }
+            entityData = file.slice((int) entityOffset, entityCount * ENTITY_SIZE);
+        } else {
+            entityData = null;
+        }
+    }
+
+    //crea un mapa que lee sus casillas de este archivo
+    public Map createMap() {
+        return new Map(m, n, new ChunkedTileGrid(tileData, m, n, chunkSize, bytesPerTile));
+    }
+
+    public int getRows() {
+        return m;
+    }
+
+    public int getColumns() {
+        return n;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getBytesPerTile() {
+        return bytesPerTile;
+    }
+
+
+    //CAPA DE ENTIDADES
+
+    public int getEntityCount() {
+        return entityCount;
+    }
+
+    public int getEntityType(int i) {
+        return entityData.getInt(i * ENTITY_SIZE);
+    }
+
+    public double getEntityX(int i) {
+        return entityData.getFloat(i * ENTITY_SIZE + 4);
+    }
+
+    public double getEntityY(int i) {
+        return entityData.getFloat(i * ENTITY_SIZE + 8);
+    }
+
+
+    //ESCRITURA Y CONVERSIÓN
+
+    private static long tileBytes(int m, int n, int chunkSize, int bytesPerTile) {
+        long chunksX = (n + chunkSize - 1) / chunkSize;
+        long chunksY = (m + chunkSize - 1) / chunkSize;
+        long bytes = chunksX * chunksY * chunkSize * chunkSize * bytesPerTile;
+        if (HEADER_SIZE + bytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Mapa demasiado grande para un archivo.");
+        return bytes;
+    }
+
+    /*guarda un mapa en formato binario. Las entidades son opcionales, types, xs y ys pueden ser null o tener la misma
+    longitud. Los valores de las casillas se guardan con el mismo ancho que usa el mapa en memoria*/
+    public static void write(Path path, Map map, int chunkSize, int[] types, double[] xs, double[] ys) throws IOException {
+        if (chunkSize <= 0 || Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("El tamaño de los chunks debe ser potencia de 2: " + chunkSize);
+        }
+
+        int m = map.m, n = map.n;
+        int bytesPerTile = map.getBytesPerTile();
+        long tileBytes = tileBytes(m, n, chunkSize, bytesPerTile);
+        int entities = types == null ? 0 : types.length;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).put((byte) bytesPerTile).put((byte) 0);
+            header.putInt(m).putInt(n).putInt(chunkSize).putInt(entities);
+            header.putLong(entities > 0 ? HEADER_SIZE + tileBytes : 0);
+            header.flip();
+            channel.write(header);
+
+            //un chunk a la vez, las casillas fuera del mapa quedan en 0
+            ByteBuffer chunk = ByteBuffer.allocate(chunkSize * chunkSize * bytesPerTile);
+            for (int cy = 0; cy < m; cy += chunkSize) {
+                for (int cx = 0; cx < n; cx += chunkSize) {
+                    chunk.clear();
+
+                    for (int i = cy; i < cy + chunkSize; i++) {
+                        for (int j = cx; j < cx + chunkSize; j++) {
+                            int value = i < m && j < n ? map.getTile(i, j) : 0;
+
+                            switch (bytesPerTile) {
+                                case 1 -> chunk.put((byte) value);
+                                case 2 -> chunk.putShort((short) value);
+                                default -> chunk.putInt(value);
+                            }
+                        }
+                    }
+
+                    chunk.flip();
+                    while (chunk.hasRemaining()) channel.write(chunk);
+                }
+            }
+
+            if (entities > 0) {
+                ByteBuffer layer = ByteBuffer.allocate(entities * ENTITY_SIZE);
+                for (int i = 0; i < entities; i++) {
+                    layer.putInt(types[i]).putFloat((float) xs[i]).putFloat((float) ys[i]);
+                }
+                layer.flip();
+                while (layer.hasRemaining()) channel.write(layer);
+            }
+        }
+    }
+
+    //convierte un mapa de texto (el formato de Map(String)) a binario, sin entidades
+    public static void convert(Path text, Path binary, int chunkSize) throws IOException {
+        MapParser parsed;
+        try (BufferedReader reader = Files.newBufferedReader(text)) {
+            parsed = MapParser.parse(reader);
+        }
+        if (parsed == null) throw new IOException("Mapa invalido: " + text);
+
+        write(binary, new Map(parsed.m, parsed.n, parsed.tiles), chunkSize, null, null, null);
+    }
+
+    //uso: java RayEngine.MapFile mapa.txt mapa.rmap [tamaño de chunk]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Uso: MapFile <mapa de texto> <mapa binario> [tamaño de chunk]");
+            return;
+        }
+
+        int chunkSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CHUNK_SIZE;
+        convert(Paths.get(args[0]), Paths.get(args[1]), chunkSize);
+        System.out.println("Mapa convertido: " + args[1]);
+    }
+}
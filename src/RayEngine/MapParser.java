@@ -0,0 +1,114 @@
+package RayEngine;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/*lee un mapa de texto (numeros separados por espacios, una fila por linea) en una sola pasada. Los caracteres se
+leen por bloques y cada numero se convierte mientras se lee, directo al TileGrid final, sin guardar las lineas ni
+crear un String por numero. El TileGrid empieza con bytes y crece o cambia de ancho segun se necesite.
+
+Las validaciones son las mismas de siempre: todas las filas deben tener la misma cantidad de numeros y solo se
+aceptan enteros. Espacios o tabuladores repetidos cuentan como un solo separador y las lineas vacias al final
+del archivo se ignoran*/
+final class MapParser {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    final int m;
+    final int n;
+    final TileGrid tiles;
+
+    private MapParser(int m, int n, TileGrid tiles) {
+        this.m = m;
+        this.n = n;
+        this.tiles = tiles;
+    }
+
+    //regresa null si el mapa no es valido
+    static MapParser parse(Reader reader) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        TileGrid.Flat tiles = new TileGrid.Bytes(4096);
+        int count = 0; //casillas leidas
+
+        int columns = -1; //numeros de la primera fila, todas deben tener los mismos
+        int rows = 0;
+        int lineTokens = 0;
+        int blankLines = 0;
+
+        //numero que se está leyendo
+        boolean inNumber = false;
+        boolean negative = false;
+        boolean digits = false;
+        long value = 0;
+
+        int len;
+        boolean end = false;
+        while (!end) {
+            len = reader.read(buffer);
+            if (len < 0) {
+                //al final del archivo se procesa un salto de linea, por si la ultima linea no lo tiene
+                end = true;
+                buffer[0] = '\n';
+                len = 1;
+            }
+
+            for (int i = 0; i < len; i++) {
+                char c = buffer[i];
+
+                if (c >= '0' && c <= '9') {
+                    if (!inNumber) {
+                        inNumber = true;
+                        negative = false;
+                        value = 0;
+                    }
+                    value = value * 10 + (c - '0');
+                    digits = true;
+
+                    if (value > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE)) return null;
+                } else if ((c == '-' || c == '+') && !inNumber) {
+                    inNumber = true;
+                    negative = c == '-';
+                    digits = false;
+                    value = 0;
+                } else if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                    if (inNumber) {
+                        if (!digits) return null; //un signo sin numero
+                        inNumber = false;
+                        digits = false;
+
+                        int tile = (int) (negative ? -value : value);
+                        if (count == tiles.size) tiles = tiles.resize((int) Math.min(Integer.MAX_VALUE - 8, 2L * tiles.size));
+                        if (!tiles.fits(tile)) tiles = tiles.widen(tile);
+                        tiles.set(count++, tile);
+                        lineTokens++;
+                    }
+
+                    if (c != '\n') continue;
+
+                    //FIN DE LINEA
+                    if (lineTokens == 0) {
+                        blankLines++;
+                        continue;
+                    }
+
+                    if (columns < 0) columns = lineTokens;
+                    if (lineTokens != columns || blankLines > 0) {
+                        System.out.println("Mapa invalido, ineas de diferentes longitudes.");
+                        return null;
+                    }
+
+                    rows++;
+                    lineTokens = 0;
+                } else {
+                    return null; //cualquier otro caracter
+                }
+            }
+        }
+
+        if (rows == 0) return null;
+
+        //recorta el espacio que sobró al crecer
+        if (tiles.size != count) tiles = tiles.resize(count);
+        return new MapParser(rows, columns, tiles);
+    }
+}
@@ -29,6 +29,8 @@ public class Player {
     //la posición de la casilla del mapa en el que está el jugador, se recalcula cada frame
     protected Position tile;
     
+    protected final Collision collision = new Collision(); //se reutiliza en cada movimiento
+    
     public Player(int v, int x, int y) {
         this.v = v;
         this.x = x;
@@ -58,6 +60,13 @@ public class Player {
         return y;
     }
     
+    //mueve al jugador directamente, sin revisar colisiones
+    public void setPosition(double x, double y) {
+        this.x = x;
+        this.y = y;
+        updateTile();
+    }
+    
     
     //para guardar una referencia de la clase Input de engine y acceder a los eventos de mouse y teclado del frame de engine
     public void addInput(Input i) {
@@ -153,40 +162,25 @@ public class Player {
             moveY += cos * speed;
         }
 
-        //la nueva posición que tomará el personaje
-        double newX = x + moveX;
-        double newY = y + moveY;
+        //mueve primero en x y luego en y, asi si choca en un eje puede seguir en el otro y se desliza por la pared
+        map.move(x, y, moveX, moveY, hitboxRadius, collision);
+        x = collision.x;
+        y = collision.y;
 
-        
-        //si con newX no colisiona con pared lo asigna al personaje
-        if (!hasCollision(newX, y, hitboxRadius)) x = newX;
-        
-        //si con newY no colisiona con pared lo asigna al personaje
-        if (!hasCollision(x, newY, hitboxRadius)) y = newY;
-        
-        /*no revisa las colisiones con ambas posiciones nuevas (newX y newY) porque si lo hiciera, aunque solo un eje tenga colision, ninguna de las dos posiciones se actualizaria.
-        Por eso checa ambas colisiones separadas, para que si encuentra una colision en un eje, solo se bloquee ese y puedas seguir moviendote en el otro eje*/
-
-        tile = Map.getTile(x, y);
+        updateTile();
         //System.out.println(tile);
     }
     
     //revisa si una posicion colisiona con una pared en el radio especificado
     protected boolean hasCollision(double px, double py, int radius) {
-        //las 8 posibles direcciones en las que podria detectarse una colision
-        int[][] directions = {
-            {-radius, -radius}, {0, -radius},
-            {radius, -radius}, {radius, 0},
-            {radius, radius}, {0, radius},
-            {-radius, radius}, {-radius, 0}
-        };
-        
-        for (int[] i: directions) {
-            if (map.insideOfWall(px + i[0], py + i[1])) {
-                return true;
-            }
-        }
-        return false;
+        return map.overlapsWall(px, py, radius);
+    }
+    
+    //solo crea un Position nuevo cuando el jugador cambia de casilla
+    private void updateTile() {
+        int row = (int) Math.floor(y / Engine.TILE_SIZE);
+        int col = (int) Math.floor(x / Engine.TILE_SIZE);
+        if (tile == null || tile.m != row || tile.n != col) tile = new Position(row, col);
     }
     
     
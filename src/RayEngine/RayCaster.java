@@ -3,39 +3,169 @@ package RayEngine;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public final class RayCaster {
     
     private final Map map;
     private final Player p;
-    private final ArrayList<Entity> entities;
+    private final EntityStore entities;
     private final ArrayList <Banner> banners;
     
     private int simWidth;
     private int simHeight;
     
-    private DPoint playerPos;
+    private double px, py; //posicion del jugador
     private double angle; //angulo del jugador en radianes
     
     private int FOV; //field of view, que tantos grados puede ver el jugador
     
     private int raysToCast;
-    private Ray[] rays;
     private double ratio; //división del aspect ratio
     
+    /*resultados del casteo de cada rayo, un elemento por columna. Se guardan en arrays primitivos que solo se
+    recrean cuando cambia la cantidad de rayos, para no crear ningun objeto por frame*/
+    private double[] rayLength; //distancia hasta la pared, infinito si el rayo sale del mapa
+    private double[] hitX;
+    private double[] hitY;
+    private boolean[] hitVertical; //true si golpeó una linea vertical de la cuadricula, false si fue horizontal
+    private int[] tileValue; //valor de la casilla golpeada
+    private int[] texU; //posición horizontal en la textura de la pared, de 0 a TEX_ONE (excluido)
+    private DepthBuffer depth; //distancia perpendicular de la pared de cada columna
+    private final VisibleTiles visibleTiles; //casillas que cruzó algún rayo
+    private final TileMarks marks; //casillas que marcan los rayos del casteo en un solo hilo, se pasan a visibleTiles
+    
+    //texU está en punto fijo, TEX_ONE es el ancho completo de la textura
+    private static final int TEX_SHIFT = 16;
+    private static final int TEX_ONE = 1 << TEX_SHIFT;
+    
     private Background bg;
     
+    /*renderizado en paralelo. La pantalla se divide en franjas de columnas y cada franja se procesa en un hilo del pool.
+    Cada columna solo escribe en sus propias posiciones de los arrays, por lo que el resultado es el mismo que en un solo hilo*/
+    private static final int MIN_STRIP_WIDTH = 16; //ancho minimo de una franja, para no repartir trabajo demasiado pequeño
+    private boolean parallel;
+    private ForkJoinPool pool;
+    private ColumnStrip[] strips;
+    private StripRoot stripRoot;
+    
+    /*direcciones de los rayos relativas a la camara, una por columna. En el espacio de la camara el jugador siempre
+    mira hacia (1, 0), por lo que cada frame basta con rotar cada dirección al angulo del jugador. camCorrection es
+    el coseno entre el rayo y el centro de la vista, y convierte la longitud del rayo a distancia perpendicular*/
+    private boolean cameraPlane; //false: rayos separados por el mismo angulo, true: separados sobre un plano de camara
+    private double[] camDirX;
+    private double[] camDirY;
+    private double[] camCorrection;
+    
+    /*diferencia maxima entre la pendiente del rayo de una columna y la pendiente con la que se proyectan los sprites
+    en esa columna, más el ancho de una columna. Con rayos separados por el mismo angulo las dos no coinciden*/
+    private double projSlopeError;
+    
+    /*coherencia temporal: si el jugador no se movio, no giró y el mapa no cambió, los rayos del frame anterior siguen
+    siendo correctos y no se vuelven a castear. Si solo giró un numero exacto de columnas (con rayos separados por el
+    mismo angulo) las columnas se recorren y solo se castean las que entraron a la vista*/
+    private boolean temporalCoherence;
+    private boolean castValid; //false cuando cambia algo que invalida los rayos guardados (fov, rayos, proyección)
+    private double castX, castY, castAngle;
+    private int castModCount;
+    private int shiftedSinceCast; //columnas recorridas desde el ultimo casteo completo
+    
+    //datos del frame actual que comparten todas las franjas
+    private double viewCos;
+    private double viewSin;
+    private int stripPass; //lo que hacen las franjas: castear rayos, dibujar paredes o dibujar sprites
+    private static final int PASS_CAST = 0;
+    private static final int PASS_WALLS = 1;
+    private static final int PASS_SPRITES = 2;
+    
+    private FrameProfiler profiler; //puede ser null
+    
+    //renderizado por software, escribe los pixeles directamente en una imagen en vez de usar drawImage por columna
+    private boolean softwareRendering;
+    private FrameBuffer frame;
+    private int[] bgPixels;
+    private final TextureAtlas textureAtlas; //texels de los sprites que dibuja este raycaster
+    private int[] atlas; //textureAtlas.texels(), se obtiene cada frame despues de copiar los sprites nuevos
+    //posiciones en el atlas de los niveles del sprite de cada valor de casilla, se recalculan si el mapa o el atlas cambian
+    private int[][] wallOffsets = new int[0][];
+    private int wallOffsetsModCount = -1;
+    private int wallOffsetsLayout = -1;
+    private final Shading shading; //sombreado de las paredes, niebla y tintes
+    
+    /*proyección de las entidades en la pantalla, se calcula una vez por frame. projStart es la primer
+    columna del sprite, projSize su ancho y alto, y projOffset la posición en y donde empieza*/
+    private Entity[] projEntity;
+    private int[] projStart;
+    private int[] projSize;
+    private int[] projOffset;
+    private double[] projDepth; //distancia perpendicular de la entidad
+    private boolean[] projUnoccluded; //true si ninguna pared tapa al sprite, para no revisar columna por columna
+    private double[] projDistance; //distancia al jugador, con la que se ordenan
+    private int projCount;
+    
+    /*orden en que se dibujan las entidades proyectadas, de la más lejana a la más cercana (indices de los arrays de
+    proyección). De un frame a otro el orden casi no cambia, asi que se empieza con el orden del frame anterior
+    (prevOrder) y se corrige con insertion sort, que en una lista casi ordenada recorre cada entidad una sola vez.
+    Las que acaban de aparecer no tienen orden previo, si son muchas se ordenan con Arrays.sort y se mezclan*/
+    private int[] projOrder;
+    private boolean[] projPlaced; //si la entidad ya se puso en projOrder al armarlo
+    private int[] projMerged; //para mezclar las entidades que ya estaban con las nuevas
+    private long[] sortKeys; //distancia e indice de cada entidad empacados, para ordenar con Arrays.sort
+    private Entity[] prevOrder;
+    private int prevCount;
+    private int projFrame; //numero del frame, para saber que entidades se proyectaron en este
+    
+    /*el renderizado por software dibuja las entidades agrupadas por Sprite (lotes), para que las que comparten
+    textura se dibujen juntas con los mismos datos de la textura. Una entidad solo se adelanta a un lote anterior
+    si sus columnas no se cruzan con las de ningun lote que va despues de ese, asi el resultado es el mismo que
+    dibujarlas de atras hacia adelante. batchOrder tiene los indices de proyección en el orden en que se dibujan,
+    y el lote b son las posiciones batchStart[b] a batchStart[b + 1]*/
+    private static final int BATCH_SCAN = 16; //lotes hacia atras en los que se busca uno del mismo sprite
+    private static final int INSERTION_LIMIT = 32; //entidades nuevas que todavia se acomodan con insertion sort
+    private int[] batchOrder;
+    private int[] batchStart;
+    private int batchCount;
+    private int[] batchNext; //siguiente entidad del mismo lote, -1 al final
+    private Sprite[] batchSprite;
+    private int[][] batchOffsets; //posiciones en el atlas de los niveles del sprite de cada lote
+    private int[] batchFirst, batchLast; //primera y ultima entidad de cada lote
+    private int[] batchFrom, batchTo; //columnas que ocupa cada lote
+    
     
     //aspect ratio o relacion de aspecto, que indica la proporción que el renderizado mantendrá
     private Dimension aspectRatio;
     
-    public RayCaster(Player p, Map map, ArrayList<Entity> entities, ArrayList<Banner> banners, Background bg) {
+    /*las entidades vienen del EntityStore del engine, que no es publico, asi que un RayCaster solo lo crean Engine y
+    HeadlessEngine. Antes el constructor era publico y recibia un ArrayList de entidades*/
+    RayCaster(Player p, Map map, EntityStore entities, ArrayList<Banner> banners, Background bg) {
         this.p = p;
         this.map = map;
         this.entities = entities;
         this.banners = banners;
         this.bg = bg;
         this.FOV = 60;
+        this.softwareRendering = true;
+        this.temporalCoherence = true;
+        this.shading = new Shading();
+        this.textureAtlas = new TextureAtlas();
+        this.visibleTiles = new VisibleTiles(map.m, map.n);
+        this.marks = new TileMarks();
+        
+        projEntity = new Entity[16];
+        projStart = new int[16];
+        projSize = new int[16];
+        projOffset = new int[16];
+        projDepth = new double[16];
+        projUnoccluded = new boolean[16];
+        projDistance = new double[16];
+        projOrder = new int[16];
+        projPlaced = new boolean[16];
+        projMerged = new int[16];
+        sortKeys = new long[16];
+        allocBatches(16);
+        prevOrder = new Entity[16];
         
         //establece la relación de aspecto
         setAspectRatio(4, 3);
@@ -45,7 +175,6 @@ public final class RayCaster {
         setRaysToCast(200);
         
         updatePlayerInfo();
-        rays = new Ray[raysToCast];
     }
     
     
@@ -59,17 +188,31 @@ public final class RayCaster {
         estableciendo el fov a 360, en realidad quedarias con un aumento de 0, y todos los rayos tendrian exactamente el mismo angulo*/
         if (FOV == 360) {
             this.FOV = FOV;
+            buildDirectionTables();
             return;
         }
         
         FOV = (int) Engine.normalizeAngleDeg(FOV);
         this.FOV = FOV;
+        buildDirectionTables();
     }
     
     public void setRaysToCast(int raysToCast) {
         //if (raysToCast % 2 == 1) raysToCast++; //igual con los rayos
         this.raysToCast = raysToCast;
-        rays = new Ray[raysToCast];
+        
+        rayLength = new double[raysToCast];
+        hitX = new double[raysToCast];
+        hitY = new double[raysToCast];
+        hitVertical = new boolean[raysToCast];
+        tileValue = new int[raysToCast];
+        texU = new int[raysToCast];
+        depth = new DepthBuffer(raysToCast);
+        castValid = false;
+        
+        if (parallel) createStrips();
+        
+        buildDirectionTables();
         
         /*cada rayo va a dibujar una sola columna de pixeles de la vista en 3D, por lo que el ancho en pixeles será el mismo
         que el número de rayos trazados. se calcula el alto de la simulación con una regla de 3, considerando el aspect ratio*/
@@ -86,27 +229,377 @@ public final class RayCaster {
         this.bg = bg;
     }
     
+    /*true para repartir los rayos sobre un plano de camara en vez de separarlos por el mismo angulo. Con el plano de
+    camara cada columna ocupa el mismo ancho en pantalla, por lo que la perspectiva es correcta incluso con fov muy
+    abiertos, y coincide con la proyección de las entidades. Solo funciona con fov menores a 180*/
+    public void setCameraPlane(boolean cameraPlane) {
+        this.cameraPlane = cameraPlane;
+        buildDirectionTables();
+    }
+    
+    public boolean isCameraPlane() {
+        return cameraPlane;
+    }
+    
+    /*recalcula las direcciones de cada columna en el espacio de la camara. Solo depende del fov, la cantidad de
+    rayos y el tipo de proyección, asi que no se vuelve a calcular hasta que alguno de ellos cambie*/
+    private void buildDirectionTables() {
+        if (raysToCast <= 0) return;
+        castValid = false;
+        
+        if (camDirX == null || camDirX.length != raysToCast) {
+            camDirX = new double[raysToCast];
+            camDirY = new double[raysToCast];
+            camCorrection = new double[raysToCast];
+        }
+        
+        double fovRad = Math.toRadians(FOV);
+        
+        if (cameraPlane && FOV < 180) {
+            /*el plano de camara va de -tan(fov/2) a tan(fov/2) a una distancia de 1 enfrente del jugador. Cada columna
+            apunta al centro de su parte del plano, y la dirección se normaliza para que el DDA regrese distancias reales*/
+            double halfFovTan = Math.tan(fovRad / 2.0);
+            for (int i = 0; i < raysToCast; i++) {
+                double planeX = (2.0 * (i + 0.5) / raysToCast - 1.0) * halfFovTan;
+                double inv = 1.0 / Math.sqrt(1.0 + planeX * planeX);
+                camDirX[i] = inv;
+                camDirY[i] = planeX * inv;
+                camCorrection[i] = inv;
+            }
+        } else {
+            //incremento del angulo cada que se castea un nuevo rayo
+            double angleIncrement = fovRad / raysToCast;
+            double startOffset = -angleIncrement * (raysToCast / 2);
+            for (int i = 0; i < raysToCast; i++) {
+                double offset = startOffset + angleIncrement * i;
+                camDirX[i] = Math.cos(offset);
+                camDirY[i] = Math.sin(offset);
+                camCorrection[i] = Math.cos(offset);
+            }
+        }
+        
+        if (FOV < 180) {
+            double halfFovTan = Math.tan(fovRad / 2.0);
+            double error = 0;
+            for (int i = 0; i < raysToCast; i++) {
+                double spriteSlope = (2.0 * (i + 0.5) / raysToCast - 1.0) * halfFovTan;
+                error = Math.max(error, Math.abs(camDirY[i] / camDirX[i] - spriteSlope));
+            }
+            projSlopeError = error + 2 * halfFovTan / raysToCast;
+        } else {
+            projSlopeError = Double.POSITIVE_INFINITY; //no se usan las casillas visibles
+        }
+    }
+    
+    //activa o desactiva el casteo de rayos (y el dibujo por software) en varios hilos, usando el pool comun de java
+    public void setParallel(boolean parallel) {
+        setParallel(parallel, ForkJoinPool.commonPool());
+    }
+    
+    public void setParallel(boolean parallel, ForkJoinPool pool) {
+        this.parallel = parallel;
+        this.pool = pool;
+        
+        if (parallel) createStrips();
+        else {
+            strips = null;
+            stripRoot = null;
+        }
+    }
+    
+    public boolean isParallel() {
+        return parallel;
+    }
+    
+    /*divide las columnas en franjas. Se crean algunas franjas más que hilos tiene el pool para que si
+    un hilo termina antes (por ejemplo porque sus rayos eran más cortos) pueda tomar trabajo de otra franja*/
+    private void createStrips() {
+        int count = pool.getParallelism() * 4;
+        count = Math.min(count, (raysToCast + MIN_STRIP_WIDTH - 1) / MIN_STRIP_WIDTH);
+        count = Math.max(count, 1);
+        
+        strips = new ColumnStrip[count];
+        for (int i = 0; i < count; i++) {
+            int from = (int) ((long) raysToCast * i / count);
+            int to = (int) ((long) raysToCast * (i + 1) / count);
+            strips[i] = new ColumnStrip(from, to);
+        }
+        stripRoot = new StripRoot();
+    }
+    
     
     public void update(double dt) {
         updatePlayerInfo();
-        castRays();
+        map.streamAround(px, py);
+        
+        if (!temporalCoherence || !reuseRays()) castRays();
+        
+        castValid = true;
+        castX = px;
+        castY = py;
+        castAngle = angle;
+        castModCount = map.getModCount();
+    }
+    
+    public void setTemporalCoherence(boolean temporalCoherence) {
+        this.temporalCoherence = temporalCoherence;
+    }
+    
+    public boolean isTemporalCoherence() {
+        return temporalCoherence;
+    }
+    
+    //intenta reutilizar los rayos del frame anterior, regresa false si hay que castear todo de nuevo
+    private boolean reuseRays() {
+        if (!castValid || px != castX || py != castY || map.getModCount() != castModCount) return false;
+        if (angle == castAngle) return true; //nada cambió
+        
+        //con el plano de camara las columnas no están separadas por el mismo angulo, asi que no se pueden recorrer
+        if (cameraPlane && FOV < 180) return false;
+        
+        //cuantas columnas giró el jugador, solo sirve si es un numero entero de columnas
+        double delta = angle - castAngle;
+        if (delta > Math.PI) delta -= 2 * Math.PI;
+        else if (delta < -Math.PI) delta += 2 * Math.PI;
+        
+        double steps = delta / (Math.toRadians(FOV) / raysToCast);
+        long k = Math.round(steps);
+        if (Math.abs(steps - k) > 1e-6 || Math.abs(k) >= raysToCast) return false;
+        
+        /*las casillas que vieron las columnas que salieron de la vista siguen marcadas como visibles. Para que no se
+        acumulen al girar sin moverse, despues de recorrer una pantalla completa se castea todo de nuevo*/
+        if (shiftedSinceCast + Math.abs(k) > raysToCast) return false;
+        shiftedSinceCast += Math.abs(k);
+        
+        shiftColumns((int) k);
+        return true;
+    }
+    
+    /*recorre k columnas los resultados de los rayos (la columna i toma lo que tenia la columna i + k) y castea
+    solo las columnas que quedaron vacias. La distancia perpendicular si se recalcula, porque depende de la columna*/
+    private void shiftColumns(int k) {
+        int keep = raysToCast - Math.abs(k);
+        int src = k > 0 ? k : 0;
+        int dst = k > 0 ? 0 : -k;
+        
+        System.arraycopy(rayLength, src, rayLength, dst, keep);
+        System.arraycopy(hitX, src, hitX, dst, keep);
+        System.arraycopy(hitY, src, hitY, dst, keep);
+        System.arraycopy(hitVertical, src, hitVertical, dst, keep);
+        System.arraycopy(tileValue, src, tileValue, dst, keep);
+        System.arraycopy(texU, src, texU, dst, keep);
+        
+        for (int i = dst; i < dst + keep; i++) depth.depth[i] = rayLength[i] * camCorrection[i];
+        
+        viewCos = Math.cos(angle);
+        viewSin = Math.sin(angle);
+        marks.clear();
+        if (k > 0) castColumns(keep, raysToCast, marks);
+        else castColumns(0, -k, marks);
+        marks.applyTo(visibleTiles);
+        
+        depth.build();
     }
     
     private void updatePlayerInfo() {
-        playerPos = p.getPlayerPos();
+        px = p.getX();
+        py = p.getY();
         angle = p.getRadAngle();
     }
     
     
     private void castRays() {
-        //incremento del angulo cada que se castea un nuevo rayo
-        double angleIncrement = Math.toRadians(FOV / (raysToCast * 1.0));
-        double rayAngle = angle - angleIncrement * (raysToCast / 2);
+        //la unica trigonometria del frame, todas las columnas usan la misma rotación
+        viewCos = Math.cos(angle);
+        viewSin = Math.sin(angle);
         
-        for (int i = 0; i < raysToCast; i++) {
-            rays[i] = new Ray(Engine.normalizeAngleRad(rayAngle), playerPos, map);
-            rayAngle += angleIncrement;
+        visibleTiles.clear();
+        shiftedSinceCast = 0;
+        
+        if (parallel) {
+            //cada franja guarda las casillas en su propia lista y al final se marcan, para no escribir en los mismos longs
+            runStrips(PASS_CAST);
+            for (ColumnStrip i: strips) i.seen.applyTo(visibleTiles);
+        } else {
+            marks.clear();
+            castColumns(0, raysToCast, marks);
+            marks.applyTo(visibleTiles);
         }
+        
+        //con todas las columnas listas calcula los minimos y maximos de profundidad por rango
+        depth.build();
+    }
+    
+    //ejecuta todas las franjas y espera a que terminen antes de continuar
+    private void runStrips(int pass) {
+        stripPass = pass;
+        for (ColumnStrip i: strips) i.reinitialize();
+        stripRoot.reinitialize();
+        pool.invoke(stripRoot);
+    }
+    
+    /*castea los rayos de las columnas from (incluida) a to (excluida), rotando la dirección de cada columna al angulo
+    del jugador. Las casillas que cruzan los rayos se marcan en seen*/
+    private void castColumns(int from, int to, TileMarks seen) {
+        for (int i = from; i < to; i++) {
+            double cx = camDirX[i];
+            double cy = camDirY[i];
+            castRay(i, cx * viewCos - cy * viewSin, cx * viewSin + cy * viewCos, seen);
+        }
+    }
+    
+    /*castea un rayo usando DDA (digital differential analyzer). En vez de buscar por separado las intersecciones
+    horizontales y verticales, recorre las casillas del mapa una por una en el orden en el que el rayo las atraviesa,
+    avanzando siempre hacia la linea de la cuadricula (vertical u horizontal) que esté más cerca. Asi el mapa se
+    recorre una sola vez y con coordenadas enteras, y el resultado se escribe directamente en los arrays del rayo i*/
+    private void castRay(int i, double dirX, double dirY, TileMarks seen) {
+        final int T = Engine.TILE_SIZE;
+        
+        //casilla en la que empieza el rayo
+        int mapX = (int) Math.floor(px / T);
+        int mapY = (int) Math.floor(py / T);
+        
+        /*deltaX y deltaY son la distancia que el rayo tiene que recorrer para cruzar una casilla completa en cada
+        eje. sideX y sideY son la distancia desde el jugador hasta la siguiente linea vertical u horizontal. Si el
+        rayo es paralelo a un eje nunca cruzará las lineas de ese eje, por lo que su distancia es infinita*/
+        int stepX, stepY;
+        double deltaX, deltaY;
+        double sideX, sideY;
+        
+        if (dirX > 0) {
+            stepX = 1;
+            deltaX = T / dirX;
+            sideX = ((mapX + 1) * T - px) / dirX;
+        } else if (dirX < 0) {
+            stepX = -1;
+            deltaX = T / -dirX;
+            sideX = (px - mapX * T) / -dirX;
+        } else {
+            stepX = 0;
+            deltaX = Double.POSITIVE_INFINITY;
+            sideX = Double.POSITIVE_INFINITY;
+        }
+        
+        if (dirY > 0) {
+            stepY = 1;
+            deltaY = T / dirY;
+            sideY = ((mapY + 1) * T - py) / dirY;
+        } else if (dirY < 0) {
+            stepY = -1;
+            deltaY = T / -dirY;
+            sideY = (py - mapY * T) / -dirY;
+        } else {
+            stepY = 0;
+            deltaY = Double.POSITIVE_INFINITY;
+            sideY = Double.POSITIVE_INFINITY;
+        }
+        
+        /*la distancia a la linea numero k se calcula como base + k * delta en vez de ir sumando delta, asi llega al
+        mismo valor si se avanza de una en una o si se salta directo a la linea k con el campo de distancias*/
+        double baseX = sideX, baseY = sideY;
+        int kx = 0, ky = 0;
+        
+        double dist;
+        boolean vertical;
+        int mapN = map.n, mapM = map.m;
+        byte[] skip = map.getDistances();
+        if (mapX < 0 || mapY < 0 || mapX >= mapN || mapY >= mapM) skip = null; //el jugador está fuera del mapa
+        else seen.set(mapY, mapX);
+        
+        //avanza de casilla en casilla hasta encontrar una pared o salir del mapa
+        while (true) {
+            /*si la casilla actual está a d casillas de la pared más cercana, el cuadrado de radio r = d - 1 a su
+            alrededor está vacio y el rayo lo puede cruzar sin revisar casillas. Salta hasta justo antes de la linea
+            con la que sale del cuadrado, siguiendo la misma regla que el ciclo normal: con distancias iguales
+            primero se cruza la linea vertical*/
+            if (skip != null) {
+                int r = skip[mapY * mapN + mapX] - 1;
+                
+                if (r > 0) {
+                    double exitX = stepX != 0 ? baseX + (kx + r) * deltaX : Double.POSITIVE_INFINITY;
+                    double exitY = stepY != 0 ? baseY + (ky + r) * deltaY : Double.POSITIVE_INFINITY;
+                    int nx, ny;
+                    
+                    if (exitX <= exitY) {
+                        //sale por x, antes cruza todas las lineas horizontales que estén antes de exitX
+                        nx = kx + r;
+                        ny = ky;
+                        if (stepY != 0) while (ny < ky + r && baseY + ny * deltaY < exitX) ny++;
+                    } else {
+                        //sale por y, antes cruza las lineas verticales que estén antes de exitY o a la misma distancia
+                        ny = ky + r;
+                        nx = kx;
+                        if (stepX != 0) while (nx < kx + r && baseX + nx * deltaX <= exitY) nx++;
+                    }
+                    
+                    /*el salto no dice exactamente que casillas cruzó el rayo, se marca el rectangulo entre la casilla
+                    de antes y la de despues. Son casillas vacias junto al rayo, marcar de más no cambia lo que se ve*/
+                    int toX = mapX + stepX * (nx - kx);
+                    int toY = mapY + stepY * (ny - ky);
+                    seen.setRect(Math.min(mapY, toY), Math.min(mapX, toX), Math.max(mapY, toY), Math.max(mapX, toX));
+                    
+                    mapX = toX;
+                    mapY = toY;
+                    kx = nx;
+                    ky = ny;
+                    if (stepX != 0) sideX = baseX + kx * deltaX;
+                    if (stepY != 0) sideY = baseY + ky * deltaY;
+                }
+            }
+            
+            if (sideY < sideX) {
+                dist = sideY;
+                sideY = baseY + ++ky * deltaY;
+                mapY += stepY;
+                vertical = false;
+            } else {
+                dist = sideX;
+                sideX = baseX + ++kx * deltaX;
+                mapX += stepX;
+                vertical = true;
+            }
+            
+            //si sale del mapa el rayo no golpeó nada
+            if (mapX < 0 || mapY < 0 || mapX >= mapN || mapY >= mapM) {
+                rayLength[i] = Double.POSITIVE_INFINITY;
+                depth.depth[i] = Double.POSITIVE_INFINITY;
+                hitX[i] = px;
+                hitY[i] = py;
+                hitVertical[i] = vertical;
+                tileValue[i] = 0;
+                texU[i] = 0;
+                return;
+            }
+            
+            seen.set(mapY, mapX);
+            if (map.isWallIndex(mapY * mapN + mapX)) break;
+        }
+        
+        double hx = px + dirX * dist;
+        double hy = py + dirY * dist;
+        
+        /*que parte de la textura se va a dibujar, como fracción del ancho de la casilla en punto fijo. Asi no depende
+        del tamaño de la textura, cada renderizador la convierte a la columna del nivel de textura que use*/
+        int u = (int) ((vertical ? hy % T : hx % T) * TEX_ONE / T);
+        
+        /*para evitar que las texturas se dibujen invertidas checa si el rayo está mirando a la izquierda en intersecciones
+        verticales o hacia abajo en intersecciones horizontales y si el rayo si está invertido lo corrige tomando las
+        texturas de derecha a izquierda y no de izquierda a derecha como lo haria u normalmente*/
+        if ((vertical && dirX < 0) || (!vertical && dirY > 0)) u = TEX_ONE - 1 - u;
+        
+        rayLength[i] = dist;
+        
+        /*Se da un efecto de ojo de pez porque las columnas se hacen más pequeñas entra más largo sea el rayo y
+        los rayos más cercanos a las orillas son más largos. por eso la longitud se multiplica por el coseno de la
+        diferencia de angulos del jugador y del rayo (ya calculado en camCorrection), lo que la descompone en su
+        componente horizontal y arregla el efecto. Esta distancia perpendicular es la que se usa para el alto de
+        la pared y para comparar con las entidades*/
+        depth.depth[i] = dist * camCorrection[i];
+        hitX[i] = hx;
+        hitY[i] = hy;
+        hitVertical[i] = vertical;
+        tileValue[i] = map.getTileIndex(mapY * mapN + mapX);
+        texU[i] = u;
     }
 
     
@@ -119,20 +612,21 @@ public final class RayCaster {
         AffineTransform old = g.getTransform();
         g.scale(widthScale, heightScale);
 
-        renderWalls(g, simWidth, simHeight);
-        renderEntities(g, simWidth, simHeight);
+        renderScene(g);
         
         g.setTransform(old); //regresa a la escala original
     }
     
-    public void renderSimulation3D(Graphics2D g) {    
+    public void renderSimulation3D(Graphics2D g) {
+        renderSimulation3D(g, Engine.getWinWidth(), Engine.getWinHeight());
+    }
+    
+    //renderiza la simulación escalada y centrada en un area de winW x winH, por ejemplo una imagen sin ventana
+    public void renderSimulation3D(Graphics2D g, int winW, int winH) {    
         //escalas para acomodar al tamaño de la ventana
-        double widthScale = 1.0 * Engine.getWinWidth() / simWidth;
-        double heightScale = 1.0 * Engine.getWinHeight() / simHeight;
+        double widthScale = 1.0 * winW / simWidth;
+        double heightScale = 1.0 * winH / simHeight;
         double scale = widthScale < heightScale ? widthScale : heightScale;
-        
-        int winW = Engine.getWinWidth();
-        int winH = Engine.getWinHeight();
 
         int drawW = (int) (simWidth * scale);
         int drawH = (int) (simHeight * scale);
@@ -147,19 +641,53 @@ public final class RayCaster {
         g.scale(scale, scale);
         
         //dibujar paredes, sprites y banners
-        renderWalls(g, simWidth, simHeight);
-        renderEntities(g, simWidth, simHeight);
+        renderScene(g);
+        
+        startPhase(FrameProfiler.BANNERS);
         renderBanners(g, simWidth, simHeight);
+        stopPhase(FrameProfiler.BANNERS);
         
         g.setTransform(old); //regresa a la escala original
         
         
         /*dibuja las lineas negras a los lados o arriba y abajo para cubrir las
         partes que quedan fuera de la simulacion y del centrado*/
-        drawBlackStripes(g, xOffset, yOffset, scale);
+        drawBlackStripes(g, xOffset, yOffset, scale, winW);
     }
     
-    private void drawBlackStripes(Graphics2D g, int xo, int yo, double scale) {
+    //dibuja paredes y entidades con el renderizado que esté activo
+    private void renderScene(Graphics2D g) {
+        if (softwareRendering) {
+            rasterize();
+            
+            startPhase(FrameProfiler.PRESENT);
+            g.drawImage(frame.image, 0, 0, simWidth, simHeight, null); //una sola llamada por frame
+            stopPhase(FrameProfiler.PRESENT);
+        } else {
+            startPhase(FrameProfiler.WALLS);
+            renderWalls(g, simWidth, simHeight);
+            stopPhase(FrameProfiler.WALLS);
+            
+            startPhase(FrameProfiler.SPRITES);
+            renderEntities(g, simWidth, simHeight);
+            stopPhase(FrameProfiler.SPRITES);
+        }
+    }
+    
+    //mide las fases del renderizado si hay un profiler
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+    
+    private void startPhase(int phase) {
+        if (profiler != null) profiler.start(phase);
+    }
+    
+    private void stopPhase(int phase) {
+        if (profiler != null) profiler.stop(phase);
+    }
+    
+    private void drawBlackStripes(Graphics2D g, int xo, int yo, double scale, int winW) {
         g.setColor(Color.black);
         
         //a los lados
@@ -167,8 +695,8 @@ public final class RayCaster {
         g.fillRect((int) (xo + scale * simWidth), (int) (yo + scale * simHeight), xo, yo);
         
         //arriba y abajo
-        g.fillRect(0, 0, Engine.getWinWidth(), yo);
-        g.fillRect(0, (int) (yo + scale * simHeight), Engine.getWinWidth(), yo);
+        g.fillRect(0, 0, winW, yo);
+        g.fillRect(0, (int) (yo + scale * simHeight), winW, yo);
     }
     
     //renderiza las paredes
@@ -177,48 +705,47 @@ public final class RayCaster {
         
         for (int i = 0; i < raysToCast; i++) {
             
-            if (rays[i].hit == null) continue;
-            double rayLength = rays[i].length;
-            
-            /*Se da un efecto de ojo de pez porque las columnas se hacen más pequeñas entra más largo sea el rayo y
-            los rayos más cercanos a las orillas son más largos. por eso se obtiene la diferencia de angulos del jugador
-            y del rayo, multiplicando la longitud por el coseno de este angulo se descompone en su componente horizontal
-            lo que arregla el efecto*/
-            double da = angle - rays[i].angle;
-            da = Engine.normalizeAngleRad(da);
-            rayLength *= Math.cos(da);
-            
             //obtiene el alto de la columna que dibujará el rayo actual
-            int rayHeight = getRayHeight(rayLength, simHeight);
+            int rayHeight = getWallHeight(i, simHeight);
+            if (rayHeight < 0) continue;
             
             //calcula la posición en y que se debe de dibuja la columna para mantenerla centrada
             int offset = (simHeight - rayHeight) / 2;
             
-            //g.setColor(Color.MAGENTA);
-            
-            //que columna de pixeles del sprite se va a dibujar
-            int column;
-            if (rays[i].isVertical) column = (int) (rays[i].hit.y % Engine.TILE_SIZE);
-            else column = (int) (rays[i].hit.x % Engine.TILE_SIZE);
-            
+            //obtiene el sprite de la pared que el rayo golpeó para dibujarlo
+            Sprite wallSpr = map.getBehaviorSprite(tileValue[i]);
             
-            /*para evitar que las texturas se dibujen invertidas checa si el rayo está mirando a la izquierda en intersecciones
-            verticales o hacia abajo en intersecciones horizontales (cosa que indica inverted) y si el rayo si está invertido lo
-            corrige tomando las texturas de derecha a izquierda y no de izquierda a derecha como lo haria column normalmente*/
-            if (rays[i].inverted) column = Engine.TILE_SIZE - column - 1;
+            //columna de la textura, con su ancho real como en el renderizado por software
+            int column = texU[i] * wallSpr.getSize() >>> TEX_SHIFT;
             
-            //obtiene el sprite de la pared que el rayo golpeó para dibujarlo
-            Sprite wallSpr = map.getBehaviorSprite(rays[i].tileValue);
+            wallSpr.drawTexelColumn(g, column, i, offset, 1, rayHeight);
             
-            //si la intersección es vertical dibuja la pared normal, si es horizontal la dibuja sombreada
-            if (rays[i].isVertical) {
-                wallSpr.drawColumn(g, column, i, offset, 1, rayHeight);
-            } else {
-                wallSpr.drawShadedColumn(g, column, i, offset, 1, rayHeight);
+            //si la intersección es horizontal la oscurece pintando la sombra encima
+            Color shadow = shading.sideOverlay();
+            if (!hitVertical[i] && shadow != null) {
+                g.setColor(shadow);
+                g.fillRect(i, offset, 1, rayHeight);
             }
+            
+            drawFog(g, i, offset, rayHeight, depth.depth[i]);
         }
     }
     
+    //con Java2D la niebla se pinta encima de la columna, los tintes de las casillas solo se ven por software
+    private void drawFog(Graphics2D g, int x, int y, int h, double d) {
+        Color fog = shading.fogOverlay(shading.fogLevel(d));
+        if (fog == null) return;
+        g.setColor(fog);
+        g.fillRect(x, y, 1, h);
+    }
+    
+    //regresa el alto de la pared de la columna i, o -1 si el rayo no golpeó nada
+    private int getWallHeight(int i, int simHeight) {
+        double d = depth.depth[i];
+        if (d == Double.POSITIVE_INFINITY) return -1;
+        return getRayHeight(d, simHeight);
+    }
+    
     private int getRayHeight(double rayLength, int simHeight) {
         //calcula el alto de cada columna columna de un rayo, obteniendo la inversa de su longitud y multiplicandola por el alto de la simulacion
         double rayHeightDouble = (Engine.TILE_SIZE / rayLength * simHeight);
@@ -236,32 +763,67 @@ public final class RayCaster {
     }
     
     
-    private void renderEntities(Graphics2D g, int simWidth, int simHeight) {
+    /*calcula en que parte de la pantalla se dibujará cada entidad y lo guarda en los arrays de proyección. Se hace
+    una sola vez por frame para que ambos renderizados (y todas las franjas en paralelo) usen los mismos datos*/
+    private void projectEntities(int simWidth, int simHeight) {
+        //crece los arrays si hay más entidades que espacio
+        if (projEntity.length < entities.size()) {
+            int size = Math.max(entities.size(), projEntity.length * 2);
+            projEntity = new Entity[size];
+            projStart = new int[size];
+            projSize = new int[size];
+            projOffset = new int[size];
+            projDepth = new double[size];
+            projUnoccluded = new boolean[size];
+            projDistance = new double[size];
+            projOrder = new int[size];
+            projPlaced = new boolean[size];
+            projMerged = new int[size];
+            sortKeys = new long[size];
+            allocBatches(size);
+        }
+        
         double fovRad = Math.toRadians(FOV);
         double halfFovTan = Math.tan(fovRad / 2.0);
-
-        for (Entity i: entities) {
-            if (!i.visible) continue;
+        
+        /*para conocer la posición en pantalla que tendrá la entidad, el eje x se tiene que alinear al
+        angulo del jugador. De esta forma una entidad con x = 0 estará directamente enfrente del jugador,
+        x negativo estará a la izquierda y x positivo a la derecha. Para lograr esto se calcula que angulo
+        sumar a pa para que quede con un angulo de 90, y de esta forma siempre esté alineado como se necesita.
+        La rotación es la misma para todas las entidades, por lo que el seno y coseno se calculan una vez*/
+        double pa = -angle;
+        double rotation = (Math.PI / 2) - pa;
+        rotation = Engine.normalizeAngleRad(rotation);
+        double cos = Math.cos(rotation), sin = Math.sin(rotation);
+        
+        //se recorren las copias de los datos de las entidades, el Entity solo se toca si se va a dibujar
+        int count = entities.size();
+        double[] xs = entities.xs(), ys = entities.ys(), distances = entities.distances();
+        boolean[] visibility = entities.visibility();
+        
+        projCount = 0;
+        projFrame++;
+        for (int s = 0; s < count; s++) {
+            if (!visibility[s]) continue;
+            double ex = xs[s], ey = ys[s];
+            
             /*dx y dy son las posiciones de la entidad en un plano cartesiano donde el jugador es el origen*/
-            double dx = i.getX() - p.getX();
-            double dy = -(i.getY() - p.getY());
-            double pa = -p.getRadAngle();
+            double dx = ex - px;
+            double dy = -(ey - py);
             
-            /*para conocer la posición en pantalla que tendrá la entidad, el eje x se tiene que alinear al
-            angulo del jugador. De esta forma una entidad con x = 0 estará directamente enfrente del jugador,
-            x negativo estará a la izquierda y x positivo a la derecha. Para lograr esto se calcula que angulo
-            sumar a pa para que quede con un angulo de 90, y de esta forma siempre esté alineado como se necesita*/
-            double rotation = (Math.PI / 2) - pa;
-            rotation = Engine.normalizeAngleRad(rotation);
-            DPoint transform = rotateView(dx, dy, rotation);
+            double tx = dx * cos - dy * sin;
+            double ty = dx * sin + dy * cos;
             
             //si está detras del jugador no lo dibuja
-            if (transform.y < 0) continue;  
+            if (ty < 0) continue;  
+            
+            //si ningun rayo pasó cerca de la entidad no se puede ver, aunque esté dentro del campo de vista
+            if (!nearVisibleTile(ex, ey, ty, halfFovTan)) continue;
             
             //calcula la posicion en x (screenX) en la simulación 3d
 
             /*t indicará donde deberá estar el personaje en un rango de -1 a 1, siendo -1 el inicio de la pantalla y 1 el final.*/
-            double t = transform.x / transform.y;
+            double t = tx / ty;
             
             /*t no es más que la tangente de angulo que hay entre el eje y (que ya está alineado al jugador) y el vector de la
             entidad. Pero esta tangente puede tomar cualquier valor dependiendo de que tan lejos esté del eje y, entonces se
@@ -273,282 +835,420 @@ public final class RayCaster {
             por el tamaño de la vista 3d para obtener la posición final de x*/
             int screenX = (int)((t + 1.0) * 0.5 * simWidth);
             
-            int size = this.getRayHeight(transform.y, simHeight); //ancho y alto de un sprite
-            int offset = (simHeight - size) / 2;
-            
+            int size = this.getRayHeight(ty, simHeight); //ancho y alto de un sprite
             int start = screenX - size / 2;
-            for (int j = start; j < start + size; j++) {
-                //no dibuja la columna si está detras de una pared
-                if (j < 0 || j >= rays.length) continue;
-                if (i.getDistance() > rays[j].length) continue;
-                
-                int pos = j - start;
-                int column = pos * Engine.TILE_SIZE / size;
-                i.getSprite().drawColumn(g, column, j, offset, 1, size);
-            } 
+            
+            //columnas del sprite que quedan dentro de la pantalla, si no queda ninguna no lo dibuja
+            int from = start < 0 ? 0 : start;
+            int to = start + size > simWidth ? simWidth : start + size;
+            if (from >= to) continue;
+            
+            /*compara la distancia de la entidad con la pared más lejana de sus columnas. Si hasta la más lejana
+            está más cerca que la entidad, todo el sprite está detras de paredes y se descarta sin dibujar nada*/
+            if (ty > depth.max(from, to)) continue;
+            
+            Entity i = entities.entityAt(s);
+            projEntity[projCount] = i;
+            projStart[projCount] = start;
+            projSize[projCount] = size;
+            projOffset[projCount] = (simHeight - size) / 2;
+            projDepth[projCount] = ty;
+            projUnoccluded[projCount] = ty <= depth.min(from, to); //si está enfrente de la pared más cercana nada lo tapa
+            projDistance[projCount] = distances[s];
+            i.projFrame = projFrame;
+            i.projIndex = projCount;
+            projCount++;
         }
+        
+        //limpia las referencias que sobran del frame anterior
+        for (int k = projCount; k < projEntity.length && projEntity[k] != null; k++) projEntity[k] = null;
+        
+        sortProjected();
     }
     
-    /*rota un vector al angulo recibido. Por ejemplo si recibe un vector con un
-    angulo de 60 y recibe a = 30, regresa un vector con un angulo de 90*/
-    private DPoint rotateView(double x, double y, double a) {
-        double cos = Math.cos(a), sin = Math.sin(a);
+    private void allocBatches(int size) {
+        batchOrder = new int[size];
+        batchStart = new int[size + 1];
+        batchNext = new int[size];
+        batchSprite = new Sprite[size];
+        batchOffsets = new int[size][];
+        batchFirst = new int[size];
+        batchLast = new int[size];
+        batchFrom = new int[size];
+        batchTo = new int[size];
+    }
+    
+    /*reparte las entidades ya ordenadas en lotes. Cada entidad busca hacia atras el ultimo lote de su sprite, y si
+    antes de encontrarlo pasa por un lote que ocupa alguna de sus columnas empieza un lote nuevo*/
+    private void buildBatches() {
+        batchCount = 0;
+        for (int q = 0; q < projCount; q++) {
+            int k = projOrder[q];
+            Sprite spr = projEntity[k].getSprite();
+            int from = Math.max(projStart[k], 0);
+            int to = Math.min(projStart[k] + projSize[k], simWidth);
+            batchNext[k] = -1;
+            
+            int target = -1;
+            for (int b = batchCount - 1; b >= 0 && b >= batchCount - BATCH_SCAN; b--) {
+                if (batchSprite[b] == spr) {
+                    target = b;
+                    break;
+                }
+                if (batchFrom[b] < to && from < batchTo[b]) break;
+            }
+            
+            if (target >= 0) {
+                batchNext[batchLast[target]] = k;
+                batchLast[target] = k;
+                batchFrom[target] = Math.min(batchFrom[target], from);
+                batchTo[target] = Math.max(batchTo[target], to);
+            } else {
+                int b = batchCount++;
+                batchSprite[b] = spr;
+                batchFirst[b] = k;
+                batchLast[b] = k;
+                batchFrom[b] = from;
+                batchTo[b] = to;
+            }
+        }
         
-        double rx = x * cos - y * sin;
-        double ry = x * sin + y * cos;
+        int q = 0;
+        int layout = textureAtlas.layout();
+        for (int b = 0; b < batchCount; b++) {
+            batchStart[b] = q;
+            for (int k = batchFirst[b]; k >= 0; k = batchNext[k]) batchOrder[q++] = k;
+            batchOffsets[b] = textureAtlas.offsets(batchSprite[b]);
+        }
+        batchStart[batchCount] = q;
         
-        return new DPoint(rx, ry);
+        //si copiar un sprite nuevo movió a los demás, las posiciones de los lotes anteriores ya no sirven
+        for (int b = 0; b < batchCount; b++) {
+            if (textureAtlas.layout() != layout) batchOffsets[b] = textureAtlas.offsets(batchSprite[b]);
+            batchSprite[b] = null;
+        }
     }
     
-    ///BANNERS
-    private void renderBanners(Graphics2D g, int simWidth, int simHeight) {
-        for (Banner i: banners) {
-            i.draw(g, simWidth, simHeight);
-        }
+    /*si una columna del sprite se ve, el rayo de esa columna llega hasta la distancia ty de la entidad sin chocar y
+    cruza el sprite en una casilla que quedó marcada. El sprite mide TILE_SIZE * halfFovTan a cada lado de la
+    entidad, y el rayo se puede separar del sprite hasta ty * projSlopeError, asi que basta revisar las casillas a
+    esa distancia de la entidad. Cerca del borde del mapa los rayos pueden salir del mapa, ahi no se descarta nada*/
+    private boolean nearVisibleTile(double x, double y, double ty, double halfFovTan) {
+        if (projSlopeError == Double.POSITIVE_INFINITY) return true;
+        
+        final int T = Engine.TILE_SIZE;
+        double r = T * halfFovTan + ty * projSlopeError;
+        
+        int col0 = (int) Math.floor((x - r) / T), col1 = (int) Math.floor((x + r) / T);
+        int row0 = (int) Math.floor((y - r) / T), row1 = (int) Math.floor((y + r) / T);
+        if (col0 < 0 || row0 < 0 || col1 >= map.n || row1 >= map.m) return true;
+        
+        return visibleTiles.containsAny(row0, col0, row1, col1);
     }
     
+    //si algún rayo del ultimo casteo cruzó la casilla (row, col) o terminó en ella
+    public boolean isTileVisible(int row, int col) {
+        return visibleTiles.contains(row, col);
+    }
     
-    //RENDERIZAR  VISTA 2D
-    public void renderView2D(Graphics2D g) {
-        g.setColor(Color.yellow);
-        for (Ray i: rays) {
-            i.drawRay(g);
+    //si la entidad se dibujó en el ultimo frame, aunque sea una parte. Las que tapan las paredes no cuentan
+    public boolean isOnScreen(Entity e) {
+        return projFrame != 0 && e.projFrame == projFrame;
+    }
+    
+    /*ordena solo las entidades que se van a dibujar. Primero van las que ya se dibujaron el frame anterior, en el
+    orden que tenian, y despues las que acaban de aparecer. Asi el insertion sort solo mueve las pocas entidades que
+    se cruzaron con otra. Cuando aparecen muchas de golpe (al dar media vuelta o al crear muchas entidades) su orden
+    no tiene nada que ver con la distancia y el insertion sort costaria kept * fresh, asi que esas se ordenan aparte
+    y se mezclan con las que ya estaban*/
+    private void sortProjected() {
+        int kept = 0;
+        for (int k = 0; k < prevCount; k++) {
+            Entity e = prevOrder[k];
+            if (e.projFrame != projFrame || projPlaced[e.projIndex]) continue;
+            projOrder[kept++] = e.projIndex;
+            projPlaced[e.projIndex] = true;
+        }
+        int q = kept;
+        for (int k = 0; k < projCount; k++) {
+            if (!projPlaced[k]) projOrder[q++] = k;
+            projPlaced[k] = false;
         }
         
-        g.setColor(new Color(0, 255, 255));
-        for (Entity i: entities) {
-            i.drawEntity(g);
+        if (projCount - kept <= INSERTION_LIMIT) {
+            insertionSort(0, projCount, Integer.MAX_VALUE);
+        } else {
+            //si las que ya estaban también se revolvieron (por ejemplo al teletransportarse) se ordenan completas
+            if (!insertionSort(0, kept, 4 * kept + INSERTION_LIMIT)) keySort(0, kept);
+            keySort(kept, projCount);
+            mergeOrder(kept);
         }
+        
+        if (prevOrder.length < projCount) prevOrder = new Entity[projEntity.length];
+        for (int k = 0; k < projCount; k++) prevOrder[k] = projEntity[projOrder[k]];
+        for (int k = projCount; k < prevCount; k++) prevOrder[k] = null;
+        prevCount = projCount;
     }
     
-}
-
-
-
-
-final class Ray {
+    /*de mayor a menor distancia, las más cercanas se dibujan al final por encima de las lejanas. Regresa false si
+    tuvo que mover más de maxMoves entidades, en ese caso projOrder queda a medio ordenar*/
+    private boolean insertionSort(int from, int to, int maxMoves) {
+        int moves = 0;
+        for (int a = from + 1; a < to; a++) {
+            int k = projOrder[a];
+            double key = projDistance[k];
+            int b = a - 1;
+            while (b >= from && projDistance[projOrder[b]] < key) {
+                projOrder[b + 1] = projOrder[b];
+                b--;
+            }
+            projOrder[b + 1] = k;
+            
+            moves += a - 1 - b;
+            if (moves > maxMoves) return false;
+        }
+        return true;
+    }
     
-    public final double angle;
-    private final double px, py; //posicion del personaje en x y y
-    private final int m, n; //orden de la matriz del mapa
+    /*de mayor a menor distancia con Arrays.sort sobre longs, sin comparadores ni objetos. La distancia va como float
+    en los bits altos (en floats positivos el orden de los bits es el de los valores) y el indice en los bajos*/
+    private void keySort(int from, int to) {
+        for (int q = from; q < to; q++) {
+            int k = projOrder[q];
+            sortKeys[q] = (long) Float.floatToRawIntBits((float) projDistance[k]) << 32 | (Integer.MAX_VALUE - k);
+        }
+        Arrays.sort(sortKeys, from, to);
+        for (int q = from; q < to; q++) projOrder[q] = Integer.MAX_VALUE - (int) sortKeys[to - 1 - q + from];
+    }
     
+    //mezcla los dos tramos ya ordenados de projOrder, [0, mid) y [mid, projCount)
+    private void mergeOrder(int mid) {
+        int a = 0, b = mid, q = 0;
+        while (a < mid && b < projCount) {
+            //con distancias iguales primero las que ya estaban
+            if (projDistance[projOrder[a]] >= projDistance[projOrder[b]]) projMerged[q++] = projOrder[a++];
+            else projMerged[q++] = projOrder[b++];
+        }
+        while (a < mid) projMerged[q++] = projOrder[a++];
+        while (b < projCount) projMerged[q++] = projOrder[b++];
+        System.arraycopy(projMerged, 0, projOrder, 0, projCount);
+    }
     
-    //true si hay intersección antes de salir del mapa en cualquiera de los dos casos
-    private boolean foundHorizontalIntersection = false;
-    private boolean foundVerticalIntersection = false;
-
-    private DPoint intersection;
+    private void renderEntities(Graphics2D g, int simWidth, int simHeight) {
+        projectEntities(simWidth, simHeight);
+        
+        for (int q = 0; q < projCount; q++) {
+            int k = projOrder[q];
+            Entity i = projEntity[k];
+            int start = projStart[k];
+            int size = projSize[k];
+            double d = projDepth[k];
+            boolean unoccluded = projUnoccluded[k];
+            Sprite spr = i.getSprite();
+            
+            for (int j = start; j < start + size; j++) {
+                //no dibuja la columna si está detras de una pared
+                if (j < 0 || j >= raysToCast) continue;
+                if (!unoccluded && d > depth.depth[j]) continue;
+                
+                int pos = j - start;
+                int column = pos * spr.getSize() / size;
+                spr.drawTexelColumn(g, column, j, projOffset[k], 1, size);
+                drawFog(g, j, projOffset[k], size, d);
+            } 
+        }
+    }
     
-    //DATOS DEL RAYO
     
-    public final double length;
-    public final boolean isVertical;
-    public final boolean isHorizontal;
+    //RENDERIZADO POR SOFTWARE
     
-    public final DPoint hit;
+    public void setSoftwareRendering(boolean softwareRendering) {
+        this.softwareRendering = softwareRendering;
+    }
     
-    public final int tileValue;
+    public boolean isSoftwareRendering() {
+        return softwareRendering;
+    }
     
-    public final boolean inverted;
     
+    //ILUMINACIÓN
     
-    //recibe el angulo en radianes
-    public Ray(double angle, DPoint pos, Map map) {
-        this.angle = angle;
-        px = pos.x;
-        py = pos.y;
-
-        m = map.m;
-        n = map.n;
-        
-        length = cast(map);
-        isVertical = foundVerticalIntersection;
-        isHorizontal = foundHorizontalIntersection;
-        hit = intersection;
-        
-        /*si el angulo mira hacia abajo o hacia la izquierda las texturas se van a dibujar invertidas
-        por lo que es necesario saber si un angulo va a dibujar sus texturas asi para invertirlo*/
-        boolean lookingDown = isHorizontal && (angle > 0 && angle < Math.PI);
-        boolean lookingLeft = isVertical && (angle > Math.PI / 2 && angle < 3 * Math.PI / 2);
-        inverted = lookingDown || lookingLeft;
-        
-        tileValue = hit != null ? map.getWallValue(hit.x, hit.y) : 0;
+    //brillo de las paredes golpeadas en una linea horizontal, de 0 (negras) a 1 (igual que las verticales)
+    public void setSideShade(double sideShade) {
+        shading.setSideShade(sideShade);
     }
     
-    private double cast(Map map) {
-        DPoint pos = new DPoint(px, py);
-        
-        //obtiene los puntos de intersección vertical y horizontal
-        DPoint horizontalHit = horizontalHit(map);
-        DPoint verticalHit = verticalHit(map);
-        
-        double hLength;
-        double vLength;
-        
-        //si se dio una interseccion horizontal calcula el valor del rayo horizontal, si no le da un valor muy alto
-        hLength = foundHorizontalIntersection && horizontalHit != null ? Engine.distance(pos, horizontalHit) : Double.POSITIVE_INFINITY;
-        
-        //igual con la intersección vertical
-        vLength = foundVerticalIntersection && verticalHit != null ? Engine.distance(pos, verticalHit) : Double.POSITIVE_INFINITY;
-        
-        //primero verifica si si encontró el punto, si no regresa el valor más alto posible
-        /*ya que está regresando infinito, al hacer el calculo de la longitud de la columna de ese rayo siempre dará 0,
-        pues se estaria dividiendo entre infinito. Asi nunca se dibujaria la pared y no daria ningun conflicto*/
-        if (hLength == Double.POSITIVE_INFINITY && vLength == Double.POSITIVE_INFINITY) {
-            intersection = null;
-            return Double.POSITIVE_INFINITY;
-        }
-        
-        //asigna la longitud más corta de entr los dos, además de guardar la posición
-        if (hLength < vLength) {
-            intersection = horizontalHit;
-            foundVerticalIntersection = false;
-            foundHorizontalIntersection = true;
-            return hLength;
-        } else {
-            intersection = verticalHit;
-            foundHorizontalIntersection = false;
-            foundVerticalIntersection = true;
-            return vLength;
-        }
+    /*mezcla paredes y sprites con color segun su distancia: antes de start se ven normales y a partir de end son
+    completamente del color de la niebla. Las distancias están en las mismas unidades que el mapa (TILE_SIZE por casilla)*/
+    public void setFog(Color color, double start, double end) {
+        shading.setFog(color, start, end);
     }
     
+    public void disableFog() {
+        shading.disableFog();
+    }
     
-    //ENCUENTRA TODAS LAS INTERSECCIONES HORIZONTALES
-    private DPoint horizontalHit(Map map) {
-        boolean facingDown = angle > 0 && angle < Math.PI;
-        boolean facingUp = angle > Math.PI && angle < 2 * Math.PI;
-        
-        boolean foundWall = false;
-        
-        //se calcula la primera intersección pues el personaje no está alineado a las casillas
-        double firstX;
-        double firstY;
-        
-        //calcula la primera intersección en y, redondeando al valor del tamaño de la casilla
-        /*ya que se buscan las intersecciones horizontales, la posicion en y de cada intersección siempre se encontrará
-        alineada a las orillas de las casillas, por lo que para encontrar la primer intersección solo es necesario tomar
-        la posición en y del jugador y dependiendo de si está mirando arriba o abajo, llevarla a la siguiente casilla
-        hacia arriba o hacia abajo*/
-        if (facingUp) {
-            firstY = Math.floor(py / Engine.TILE_SIZE) * Engine.TILE_SIZE - 0.0001;
-        } else if(facingDown) {
-            firstY = Math.floor(py / Engine.TILE_SIZE) * Engine.TILE_SIZE + Engine.TILE_SIZE;
-        } else { //cuando está mirando directamente a la izquierda o a la derecha no podrá encontrar jamás una intersección horizontal
-            return null;
+    //multiplica cada canal de las paredes de las casillas con el valor indicado por el del tinte, null lo quita
+    public void setTileTint(int tileValue, Color tint) {
+        shading.setTileTint(tileValue, tint);
+    }
+    
+    //dibuja fondo, paredes y entidades en el framebuffer
+    private void rasterize() {
+        if (frame == null || frame.width != simWidth || frame.height != simHeight) {
+            frame = new FrameBuffer(simWidth, simHeight);
         }
         
-        //ahora aplicar la formula para encontrar la primer intersección en x
-        firstX = (firstY - py) / Math.tan(angle) + px;
-        
-        //ahora calcula nuevos valores para x y y para cada interseccion horizontal, iniciando desde la primer intersección
-        double nextX = firstX;
-        double nextY = firstY;
+        /*todo lo que comparten las franjas se prepara antes de repartir el trabajo. Primero se dibujan el fondo y
+        las paredes de todas las columnas, y despues los sprites. Cada franja solo toca sus propias columnas, asi
+        el resultado no depende de en que orden terminen los hilos*/
+        startPhase(FrameProfiler.WALLS);
+        bgPixels = bg.getPixels(simWidth, simHeight);
+        placeWallSprites();
+        atlas = textureAtlas.texels();
+        if (parallel) runStrips(PASS_WALLS);
+        else rasterWalls(0, raysToCast);
+        stopPhase(FrameProfiler.WALLS);
         
-        //incrementos para encontrar cada nueva intersección
-        double incrementX = 0;
-        double incrementY = 0;
+        startPhase(FrameProfiler.SPRITES);
+        projectEntities(simWidth, simHeight);
+        buildBatches();
+        atlas = textureAtlas.texels(); //pudo crecer al copiar los sprites de las entidades
+        if (parallel) runStrips(PASS_SPRITES);
+        else rasterSprites(0, raysToCast);
+        stopPhase(FrameProfiler.SPRITES);
+    }
+    
+    /*copia al atlas los sprites de las casillas antes de repartir las columnas, para que las franjas solo lean. Se
+    hace de nuevo cuando cambia el mapa o cuando el atlas movió los sprites*/
+    private void placeWallSprites() {
+        if (map.getModCount() == wallOffsetsModCount && textureAtlas.layout() == wallOffsetsLayout) return;
         
-        //los incrementos en y serán el tilesize, para mantenerlo siempre alineado a las casillas del mapa
-        if (facingUp) incrementY = - Engine.TILE_SIZE;
-        else if (facingDown) incrementY = Engine.TILE_SIZE;
+        int values = map.getBehaviorCount();
+        if (wallOffsets.length != values) wallOffsets = new int[values][];
         
-        incrementX = incrementY / Math.tan(angle);
+        //si copiar un sprite movió a los que ya estaban se vuelven a pedir las posiciones de todos
+        do {
+            wallOffsetsLayout = textureAtlas.layout();
+            for (int v = 0; v < values; v++) {
+                Sprite spr = map.getBehaviorSprite(v);
+                wallOffsets[v] = spr == null ? null : textureAtlas.offsets(spr);
+            }
+        } while (textureAtlas.layout() != wallOffsetsLayout);
+        wallOffsetsModCount = map.getModCount();
+    }
+    
+    /*dibuja el fondo y las paredes de las columnas from (incluida) a to (excluida). Cada columna usa el nivel de la
+    textura que más se acerca a su alto en pantalla*/
+    private void rasterWalls(int from, int to) {
+        frame.copyColumns(bgPixels, from, to);
         
-        //empieza el loop de revisión, solo para de revisar cuando sale del mapa
-        while(nextX >= 0 && nextX <= n * Engine.TILE_SIZE
-                && nextY >= 0 && nextY <= m * Engine.TILE_SIZE ) {
+        for (int i = from; i < to; i++) {
+            int rayHeight = getWallHeight(i, simHeight);
+            if (rayHeight < 0) continue;
             
-            //si encuentra una pared en un incremento lo marca y deja de buscar
-            if (map.insideOfWall(nextX, nextY)) {
-                foundWall = true;
-                break;
-            } else { //si no la encuentra sigue aumentando
-                nextX += incrementX;
-                nextY += incrementY;
-            }
+            int offset = (simHeight - rayHeight) / 2;
+            Sprite wallSpr = map.getBehaviorSprite(tileValue[i]);
             
+            int level = wallSpr.mipLevel(rayHeight);
+            int size = wallSpr.getSize() >> level;
+            
+            boolean shaded = !hitVertical[i];
+            int fogLevel = shading.fogLevel(depth.depth[i]);
+            frame.drawColumn(atlas, wallOffsets[tileValue[i]][level], size, texU[i] * size >>> TEX_SHIFT,
+                    i, offset, rayHeight,
+                    shading.table(tileValue[i], shaded, fogLevel), Shading.tableBase(shaded, fogLevel));
         }
-        
-        //si encontró la pared regresa la posición en donde la encontró
-        if (foundWall) {
-            foundHorizontalIntersection = true;
-            return new DPoint(nextX, nextY);
+    }
+    
+    //dibuja las partes de los sprites que caen en las columnas from (incluida) a to (excluida), lote por lote
+    private void rasterSprites(int from, int to) {
+        for (int b = 0; b < batchCount; b++) {
+            //todas las entidades del lote usan la misma textura
+            Sprite spr = projEntity[batchOrder[batchStart[b]]].getSprite();
+            int[] offsets = batchOffsets[b];
+            int fullSize = spr.getSize();
+            
+            for (int q = batchStart[b]; q < batchStart[b + 1]; q++) {
+                int k = batchOrder[q];
+                int start = projStart[k];
+                int size = projSize[k];
+                double d = projDepth[k];
+                
+                //recorta el sprite a las columnas de la franja
+                int jStart = start < from ? from : start;
+                int jEnd = start + size > to ? to : start + size;
+                if (jStart >= jEnd) continue;
+                
+                int level = spr.mipLevel(size);
+                
+                //los sprites no tienen lado ni tinte, solo les afecta la niebla
+                int fogLevel = shading.fogLevel(d);
+                int[] lut = shading.table(-1, false, fogLevel);
+                
+                frame.drawBillboard(atlas, offsets[level], fullSize >> level, start, projOffset[k], size,
+                        jStart, jEnd, d, depth.depth, projUnoccluded[k], lut, Shading.tableBase(false, fogLevel));
+            }
         }
-        
-        //si no la encontró regresa null
-        return null;
     }
     
+    ///BANNERS
+    private void renderBanners(Graphics2D g, int simWidth, int simHeight) {
+        for (Banner i: banners) {
+            i.draw(g, simWidth, simHeight);
+        }
+    }
     
     
-    //ENCUENTRA TODAS LAS INTERSECCIONES VERTICALES
-    private DPoint verticalHit(Map map) {     
-        boolean facingLeft = angle > Math.PI / 2 && angle < 3 * Math.PI / 2;
-        boolean facingRight = angle > 3 * Math.PI / 2 || angle < Math.PI / 2;
-        
-        boolean foundWall = false;
-        
-        //se calcula la primera intersección pues el personaje no está alineado a las casillas
-        double firstX;
-        double firstY;
-        
-        //calcula la primera intersección en x, redondeando al valor del tamaño de la casilla
-        /*de la misma forma que en las intersecciones horizontales, la posicion en x de la intersección se alinea a las
-        casillas, por lo que lleva la posicion en x a un valor que se alinee con las casillas*/
-        if (facingRight) {
-            firstX = Math.floor(px / Engine.TILE_SIZE) * Engine.TILE_SIZE + Engine.TILE_SIZE;
-        } else if(facingLeft) {
-            firstX = Math.floor(px / Engine.TILE_SIZE) * Engine.TILE_SIZE - 0.0001;
-        } else { //cuando está mirando directamente hacia arriba o abajo es imposible encontrar una interseccion vertical
-            return null;
+    //RENDERIZAR  VISTA 2D
+    public void renderView2D(Graphics2D g) {
+        g.setColor(Color.yellow);
+        for (int i = 0; i < raysToCast; i++) {
+            if (rayLength[i] == Double.POSITIVE_INFINITY) continue;
+            g.drawLine((int) px, (int) py, (int) hitX[i], (int) hitY[i]);
         }
         
-        //ahora aplicar la formula para encontrar la primer intersección en y
-        firstY = py + (firstX - px) * Math.tan(angle);
-        
-        //ahora calcula nuevos valores para x y y para cada interseccion vertical, iniciando desde la primer intersección
-        double nextX = firstX;
-        double nextY = firstY;
-        
-        //incrementos para encontrar cada nueva intersección
-        double incrementX = 0;
-        double incrementY = 0;
-        
-        if (facingRight) incrementX = Engine.TILE_SIZE;
-        else if (facingLeft) incrementX = - Engine.TILE_SIZE;
-        
-        incrementY = incrementX * Math.tan(angle);
-        
-        //empieza el loop de revisión, solo para de revisar cuando sale del mapa
-        while(nextX >= 0 && nextX <= n * Engine.TILE_SIZE && nextY >= 0 && nextY <= m * Engine.TILE_SIZE ) {
-            
-            //si encuentra una pared en un incremento lo marca y deja de buscar
-            if (map.insideOfWall(nextX, nextY)) {
-                foundWall = true;
-                break;
-            } else { //si no la encuentra sigue aumentando
-                nextX += incrementX;
-                nextY += incrementY;
-            }
-            
+        g.setColor(new Color(0, 255, 255));
+        for (int s = 0; s < entities.size(); s++) {
+            entities.entityAt(s).drawEntity(g);
         }
+    }
+    
+    
+    
+    //TAREAS PARA EL RENDERIZADO EN PARALELO
+    
+    //una franja de columnas, las tareas se reutilizan cada frame con reinitialize para no crear objetos
+    @SuppressWarnings("serial") //las tareas nunca se serializan
+    private final class ColumnStrip extends RecursiveAction {
+        private final int from, to;
+        private final TileMarks seen; //casillas que vieron los rayos de esta franja
         
-        //si encontró la pared regresa la posición en donde la encontró
-        if (foundWall) {
-            foundVerticalIntersection = true;
-            return new DPoint(nextX, nextY);
+        ColumnStrip(int from, int to) {
+            this.from = from;
+            this.to = to;
+            seen = new TileMarks();
         }
         
-        //si no la encontró regresa null
-        return null;
+        @Override
+        protected void compute() {
+            switch (stripPass) {
+                case PASS_CAST -> {
+                    seen.clear();
+                    castColumns(from, to, seen);
+                }
+                case PASS_WALLS -> rasterWalls(from, to);
+                case PASS_SPRITES -> rasterSprites(from, to);
+            }
+        }
     }
     
-    
- 
-    public void drawRay(Graphics2D g) {
-        if (intersection != null) {
-            g.drawLine((int) px, (int) py, (int) intersection.x, (int) intersection.y);
+    //lanza todas las franjas y termina cuando todas terminaron
+    @SuppressWarnings("serial")
+    private final class StripRoot extends RecursiveAction {
+        @Override
+        protected void compute() {
+            invokeAll(strips);
         }
     }
-}
\ No newline at end of file
+}
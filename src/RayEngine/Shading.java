@@ -0,0 +1,146 @@
+package RayEngine;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/*iluminación del renderizado por software con tablas precalculadas. Cada pixel de una pared o un sprite pasa por
+una tabla que ya tiene aplicado el sombreado del lado de la pared (las paredes golpeadas en una linea horizontal se
+ven más oscuras), el tinte de la casilla y la niebla, que mezcla el color con fogColor segun la distancia. Asi el
+costo por pixel es el mismo sin importar cuantos efectos se usen: tres lecturas de tabla, una por canal.
+
+Hay una tabla por cada combinación de tinte, lado y nivel de niebla, y cada una tiene 256 entradas por canal con el
+valor ya recorrido a su posición en el pixel, para juntar los canales con un OR*/
+final class Shading {
+
+    static final int FOG_LEVELS = 32;
+    static final int TABLE_SIZE = 3 * 256; //rojo, verde y azul
+
+    private double sideShade; //brillo de las paredes horizontales, de 0 a 1
+
+    private boolean fog;
+    private int fogColor;
+    private double fogStart; //distancia donde empieza la niebla
+    private double fogEnd; //distancia donde todo es del color de la niebla
+
+    private int[] tints; //color que multiplica a cada canal, el 0 es sin tinte
+    private int[] tileTint; //indice en tints de cada valor de casilla
+
+    //tables[tinte][(lado * FOG_LEVELS + nivel) * TABLE_SIZE + canal * 256 + valor]
+    private int[][] tables;
+
+    //los mismos efectos como colores con alpha, para pintarlos encima en el renderizado con Java2D
+    private Color sideOverlay;
+    private Color[] fogOverlays;
+
+    Shading() {
+        sideShade = 0.5;
+        fogColor = 0;
+        tints = new int[] {0xFFFFFF};
+        tileTint = new int[0];
+        rebuild();
+    }
+
+    void setSideShade(double sideShade) {
+        this.sideShade = Math.max(0, Math.min(1, sideShade));
+        rebuild();
+    }
+
+    void setFog(Color color, double start, double end) {
+        fog = true;
+        fogColor = color.getRGB() & 0xFFFFFF;
+        fogStart = start;
+        fogEnd = Math.max(end, start + 1);
+        rebuild();
+    }
+
+    void disableFog() {
+        fog = false;
+        rebuild();
+    }
+
+    //tiñe las paredes de las casillas con el valor indicado, null quita el tinte
+    void setTileTint(int tileValue, Color tint) {
+        if (tileValue < 0) return;
+        if (tileValue >= tileTint.length) tileTint = Arrays.copyOf(tileTint, tileValue + 1);
+
+        if (tint == null) {
+            tileTint[tileValue] = 0;
+            return;
+        }
+
+        //reutiliza el tinte si ya existe uno igual
+        int rgb = tint.getRGB() & 0xFFFFFF;
+        int slot = 0;
+        while (slot < tints.length && tints[slot] != rgb) slot++;
+        if (slot == tints.length) {
+            tints = Arrays.copyOf(tints, slot + 1);
+            tints[slot] = rgb;
+            rebuild();
+        }
+        tileTint[tileValue] = slot;
+    }
+
+    private void rebuild() {
+        int shadow = (int) Math.round((1 - sideShade) * 255);
+        sideOverlay = shadow == 0 ? null : new Color(0, 0, 0, shadow);
+
+        fogOverlays = new Color[FOG_LEVELS];
+        for (int level = 1; fog && level < FOG_LEVELS; level++) {
+            fogOverlays[level] = new Color(fogColor | (level * 255 / (FOG_LEVELS - 1)) << 24, true);
+        }
+
+        tables = new int[tints.length][];
+        for (int t = 0; t < tints.length; t++) {
+            int[] table = new int[2 * FOG_LEVELS * TABLE_SIZE];
+
+            for (int side = 0; side < 2; side++) {
+                double shade = side == 0 ? 1 : sideShade;
+
+                for (int level = 0; level < FOG_LEVELS; level++) {
+                    double f = fog ? (double) level / (FOG_LEVELS - 1) : 0;
+                    int base = (side * FOG_LEVELS + level) * TABLE_SIZE;
+
+                    for (int c = 0; c < 3; c++) {
+                        int channelShift = 16 - c * 8;
+                        double tint = ((tints[t] >> channelShift) & 0xFF) / 255.0;
+                        double fogValue = ((fogColor >> channelShift) & 0xFF) * f;
+
+                        for (int v = 0; v < 256; v++) {
+                            int out = (int) (v * tint * shade * (1 - f) + fogValue);
+                            table[base + c * 256 + v] = Math.min(out, 255) << channelShift;
+                        }
+                    }
+                }
+            }
+            tables[t] = table;
+        }
+    }
+
+    //nivel de niebla para la distancia perpendicular d
+    int fogLevel(double d) {
+        if (!fog || d <= fogStart) return 0;
+        if (d >= fogEnd) return FOG_LEVELS - 1;
+        return (int) ((d - fogStart) / (fogEnd - fogStart) * (FOG_LEVELS - 1) + 0.5);
+    }
+
+    //tabla para las paredes de la casilla tileValue, o null si el pixel se dibuja sin cambios
+    int[] table(int tileValue, boolean shaded, int fogLevel) {
+        int slot = tileValue >= 0 && tileValue < tileTint.length ? tileTint[tileValue] : 0;
+        if (slot == 0 && fogLevel == 0 && (!shaded || sideShade == 1)) return null;
+        return tables[slot];
+    }
+
+    //posición dentro de la tabla
+    static int tableBase(boolean shaded, int fogLevel) {
+        return ((shaded ? FOG_LEVELS : 0) + fogLevel) * TABLE_SIZE;
+    }
+
+    //null si no hay que pintar nada
+    Color fogOverlay(int fogLevel) {
+        return fogOverlays[fogLevel];
+    }
+
+    Color sideOverlay() {
+        return sideOverlay;
+    }
+}
@@ -0,0 +1,313 @@
+package RayEngine;
+
+import java.util.Arrays;
+
+/*indice de las entidades por casilla del mapa, para encontrar las que están cerca de un punto o cerca entre ellas sin
+recorrer todas. Cada casilla tiene una lista ligada de las entidades que están en ella, guardada en arrays de ints:
+la tabla de casillas tiene la primer entidad de cada casilla y next / prev enlazan a las demás. Cada entidad ocupa
+un lugar (slot) en los arrays y lo guarda en Entity.gridSlot, asi cambiarla de casilla es quitarla de una lista y
+ponerla en otra.
+
+La tabla solo tiene las casillas que tienen alguna entidad (hash con direccionamiento abierto, indexado por el
+numero de casilla), asi su tamaño depende de las entidades y no del mapa. Un array con un int por casilla en los
+mapas más grandes serian cientos de MB aunque solo hubiera unas cuantas entidades.
+
+Las entidades fuera del mapa cuentan en la casilla del borde más cercana. Las consultas reciben un Visitor en vez de
+regresar una lista, para no crear objetos en cada consulta.
+
+El grid guarda su propia copia de la posición de cada entidad, que se toma cuando la entidad se agrega o se mueve
+en el grid, y las consultas usan esa copia. Durante la actualización en paralelo el grid no se mueve, asi que las
+entidades seguras ven las posiciones del inicio del frame aunque las demás se estén moviendo en otros hilos*/
+public final class SpatialGrid {
+
+    //recibe cada entidad que cumple la consulta
+    public interface Visitor {
+        void visit(Entity e);
+    }
+
+    //recibe cada par de entidades cercanas, cada par una sola vez
+    public interface PairVisitor {
+        void visit(Entity a, Entity b);
+    }
+
+    private final int m;
+    private final int n;
+
+    //tabla de casillas ocupadas: tileKey es el numero de casilla (-1 si el lugar está libre) y tileHead su primer slot
+    private int[] tileKey;
+    private int[] tileHead;
+    private int tileCount;
+    private int tileShift; //32 - log2 del tamaño de la tabla, ver home
+
+    //datos de cada slot, los slots ocupados siempre son los primeros count
+    private Entity[] entity;
+    private double[] posX; //posición de la entidad la ultima vez que se agregó o se movió en el grid
+    private double[] posY;
+    private int[] cell;
+    private int[] next;
+    private int[] prev;
+    private int count;
+
+    SpatialGrid(int m, int n) {
+        this.m = m;
+        this.n = n;
+        tileKey = new int[64];
+        tileHead = new int[64];
+        Arrays.fill(tileKey, -1);
+        tileShift = 32 - 6;
+
+        entity = new Entity[64];
+        posX = new double[64];
+        posY = new double[64];
+        cell = new int[64];
+        next = new int[64];
+        prev = new int[64];
+    }
+
+    //MANTENIMIENTO, lo hace EntityStore
+
+    void add(Entity e) {
+        if (e.gridSlot >= 0) return;
+
+        if (count == entity.length) {
+            int capacity = count * 2;
+            entity = Arrays.copyOf(entity, capacity);
+            posX = Arrays.copyOf(posX, capacity);
+            posY = Arrays.copyOf(posY, capacity);
+            cell = Arrays.copyOf(cell, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+
+        int s = count++;
+        entity[s] = e;
+        e.gridSlot = s;
+        posX[s] = e.x;
+        posY[s] = e.y;
+        link(s, cellOf(e.x, e.y));
+    }
+
+    //quita la entidad y mueve la del ultimo slot a su lugar, para que los slots ocupados sigan juntos
+    void remove(Entity e) {
+        int s = e.gridSlot;
+        if (s < 0 || s >= count || entity[s] != e) return;
+
+        unlink(s);
+        e.gridSlot = -1;
+
+        int last = --count;
+        if (s != last) {
+            int c = cell[last];
+            unlink(last);
+            entity[s] = entity[last];
+            entity[s].gridSlot = s;
+            posX[s] = posX[last];
+            posY[s] = posY[last];
+            link(s, c);
+        }
+        entity[last] = null;
+    }
+
+    //copia la posición actual de la entidad y revisa si cambió de casilla desde la ultima vez
+    void move(Entity e) {
+        int s = e.gridSlot;
+        if (s < 0) return;
+
+        posX[s] = e.x;
+        posY[s] = e.y;
+        int c = cellOf(e.x, e.y);
+        if (c == cell[s]) return;
+        unlink(s);
+        link(s, c);
+    }
+
+    private void link(int s, int c) {
+        cell[s] = c;
+        prev[s] = -1;
+
+        int i = find(c);
+        if (tileKey[i] < 0) {
+            //la casilla estaba vacia, se agrega a la tabla
+            if ((tileCount + 1) * 2 > tileKey.length) {
+                rehash(tileKey.length * 2);
+                i = find(c);
+            }
+            tileKey[i] = c;
+            tileHead[i] = -1;
+            tileCount++;
+        }
+
+        next[s] = tileHead[i];
+        if (next[s] >= 0) prev[next[s]] = s;
+        tileHead[i] = s;
+    }
+
+    private void unlink(int s) {
+        if (prev[s] >= 0) next[prev[s]] = next[s];
+        else {
+            int i = find(cell[s]);
+            tileHead[i] = next[s];
+            if (next[s] < 0) removeTile(i); //era la unica entidad de la casilla
+        }
+        if (next[s] >= 0) prev[next[s]] = prev[s];
+    }
+
+    //lugar donde la casilla c se busca primero, los bits altos de c por una constante impar se reparten bien
+    private int home(int c) {
+        return (c * 0x9E3779B9) >>> tileShift;
+    }
+
+    //lugar de la casilla c en la tabla, o el lugar libre donde iria
+    private int find(int c) {
+        int mask = tileKey.length - 1;
+        int i = home(c);
+        while (tileKey[i] >= 0 && tileKey[i] != c) i = (i + 1) & mask;
+        return i;
+    }
+
+    //primer slot de la casilla c, -1 si no tiene entidades
+    private int headOf(int c) {
+        int i = find(c);
+        return tileKey[i] < 0 ? -1 : tileHead[i];
+    }
+
+    /*quita la casilla del lugar i y recorre hacia atras las que le siguen y estaban ahi por chocar con ella, para que
+    ninguna busqueda se detenga en el hueco*/
+    private void removeTile(int i) {
+        int mask = tileKey.length - 1;
+        tileKey[i] = -1;
+        tileCount--;
+
+        for (int j = (i + 1) & mask; tileKey[j] >= 0; j = (j + 1) & mask) {
+            int home = home(tileKey[j]);
+            //se mueve si su lugar de origen no queda entre el hueco y su posición actual
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                tileKey[i] = tileKey[j];
+                tileHead[i] = tileHead[j];
+                tileKey[j] = -1;
+                i = j;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKey = tileKey, oldHead = tileHead;
+        tileKey = new int[capacity];
+        tileHead = new int[capacity];
+        Arrays.fill(tileKey, -1);
+        tileShift = 32 - Integer.numberOfTrailingZeros(capacity);
+
+        for (int k = 0; k < oldKey.length; k++) {
+            if (oldKey[k] < 0) continue;
+            int i = find(oldKey[k]);
+            tileKey[i] = oldKey[k];
+            tileHead[i] = oldHead[k];
+        }
+    }
+
+    private int rowOf(double y) {
+        int row = (int) Math.floor(y / Engine.TILE_SIZE);
+        return row < 0 ? 0 : row >= m ? m - 1 : row;
+    }
+
+    private int colOf(double x) {
+        int col = (int) Math.floor(x / Engine.TILE_SIZE);
+        return col < 0 ? 0 : col >= n ? n - 1 : col;
+    }
+
+    private int cellOf(double x, double y) {
+        return rowOf(y) * n + colOf(x);
+    }
+
+
+    //CONSULTAS
+
+    public int size() {
+        return count;
+    }
+
+    /*posición de la entidad que usan las consultas. En el update en paralelo es la del inicio del frame, y es la que
+    una entidad segura debe leer de las demás. Si la entidad no está en el grid regresa su posición actual*/
+    public double getX(Entity e) {
+        int s = e.gridSlot;
+        return s >= 0 && entity[s] == e ? posX[s] : e.x;
+    }
+
+    public double getY(Entity e) {
+        int s = e.gridSlot;
+        return s >= 0 && entity[s] == e ? posY[s] : e.y;
+    }
+
+    //las entidades a distancia radius o menos del punto (x, y)
+    public void forEachInRadius(double x, double y, double radius, Visitor v) {
+        double r2 = radius * radius;
+        int row0 = rowOf(y - radius), row1 = rowOf(y + radius);
+        int col0 = colOf(x - radius), col1 = colOf(x + radius);
+
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                for (int s = headOf(row * n + col); s >= 0; s = next[s]) {
+                    double dx = posX[s] - x, dy = posY[s] - y;
+                    if (dx * dx + dy * dy <= r2) v.visit(entity[s]);
+                }
+            }
+        }
+    }
+
+    //las entidades que están en la casilla (row, col)
+    public void forEachInTile(int row, int col, Visitor v) {
+        if (row < 0 || row >= m || col < 0 || col >= n) return;
+
+        for (int s = headOf(row * n + col); s >= 0; s = next[s]) {
+            v.visit(entity[s]);
+        }
+    }
+
+    //las entidades dentro del rectangulo de (x0, y0) a (x1, y1), bordes incluidos
+    public void forEachInBox(double x0, double y0, double x1, double y1, Visitor v) {
+        int row0 = rowOf(y0), row1 = rowOf(y1);
+        int col0 = colOf(x0), col1 = colOf(x1);
+
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                for (int s = headOf(row * n + col); s >= 0; s = next[s]) {
+                    double ex = posX[s], ey = posY[s];
+                    if (ex >= x0 && ex <= x1 && ey >= y0 && ey <= y1) v.visit(entity[s]);
+                }
+            }
+        }
+    }
+
+    /*todos los pares de entidades a distancia radius o menos entre ellas. Cada entidad solo se compara con las que
+    siguen en su propia casilla y con las casillas que están despues de la suya (a la derecha en su fila y las filas
+    de abajo), asi cada par se visita una sola vez*/
+    public void forEachPair(double radius, PairVisitor v) {
+        double r2 = radius * radius;
+        int reach = (int) Math.ceil(radius / Engine.TILE_SIZE); //casillas que puede haber entre dos entidades cercanas
+
+        for (int a = 0; a < count; a++) {
+            int c = cell[a];
+            int row = c / n, col = c % n;
+
+            //las que siguen en la misma casilla
+            for (int b = next[a]; b >= 0; b = next[b]) {
+                visitIfClose(a, b, r2, v);
+            }
+
+            int rowEnd = Math.min(m - 1, row + reach);
+            int colStart = Math.max(0, col - reach), colEnd = Math.min(n - 1, col + reach);
+            for (int r = row; r <= rowEnd; r++) {
+                for (int k = r == row ? col + 1 : colStart; k <= colEnd; k++) {
+                    for (int b = headOf(r * n + k); b >= 0; b = next[b]) {
+                        visitIfClose(a, b, r2, v);
+                    }
+                }
+            }
+        }
+    }
+
+    private void visitIfClose(int a, int b, double r2, PairVisitor v) {
+        double dx = posX[a] - posX[b], dy = posY[a] - posY[b];
+        if (dx * dx + dy * dy <= r2) v.visit(entity[a], entity[b]);
+    }
+}
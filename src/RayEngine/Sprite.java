@@ -3,32 +3,64 @@ package RayEngine;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.imageio.*;
 
 public class Sprite {
     
     private final BufferedImage sprite;
-    private final BufferedImage shadedSprite;
+    private BufferedImage shadedSprite; //solo se crea si se usa drawShadedSprite
     
     private final Color shadow;
     
+    private final int size; //lado de la textura, potencia de 2
+    
+    /*pixeles de cada nivel del sprite, que el renderizado por software copia al TextureAtlas de su RayCaster para
+    dibujarlos sin pasar por drawImage. El nivel 0 es la textura completa y cada nivel siguiente es la mitad de ancho
+    y alto que el anterior, hasta 1x1. Una pared lejana ocupa pocos pixeles en pantalla, y si se dibuja con la
+    textura completa solo se usan unos cuantos texels salteados de cada columna: se desperdicia cache y la pared
+    parpadea al moverse. Con el nivel que tiene más o menos el mismo tamaño que la columna en pantalla cada texel
+    que se lee se usa.
+    
+    Cada nivel se guarda columna por columna (transpuesto), porque el raycaster siempre dibuja columnas completas y
+    asi cada columna es un bloque continuo de memoria en vez de un texel por fila*/
+    private final int[][] mipColumns;
+    private final int texelCount; //suma de los texels de todos los niveles
+    
+    //sprites cargados con load, uno por ruta
+    private static final ConcurrentHashMap<String, Sprite> LOADED = new ConcurrentHashMap<>();
+    
     public Sprite(String path) {
-        //crea el sprite con getImage, luego lo reescala al tamaño de las casillas
-        sprite = Sprite.reescale(getImage(path), Engine.TILE_SIZE, Engine.TILE_SIZE);
+        /*crea el sprite con getImage, luego lo reescala a una potencia de 2. Las imagenes de hasta el tamaño de las
+        casillas quedan del tamaño de las casillas, y las más grandes conservan su resolución (redondeada hacia abajo
+        a potencia de 2) para que se vean con más detalle de cerca*/
+        BufferedImage img = getImage(path);
+        int side = Math.max(img.getWidth(), img.getHeight());
+        size = side <= Engine.TILE_SIZE ? Engine.TILE_SIZE : Integer.highestOneBit(side);
+        sprite = Sprite.reescale(img, size, size);
         
-        //crea el sprite sombreado
         shadow = new Color(0, 0, 0, 128); //negro a 50% de opacidad
-        shadedSprite = getShadedImg(sprite);
+        
+        mipColumns = toColumns(buildMips(getTexels(sprite), size), size);
+        texelCount = countTexels(mipColumns);
     }
     
     //crea un sprite con un color solido
     public Sprite(Color clr) {
         //crea el sprite normal, usando el color solido
         sprite = getColorImg(clr);
+        size = Engine.TILE_SIZE;
         
-        //crea el sprite sombreado
         shadow = new Color(0, 0, 0, 128); //negro a 50% de opacidad
-        shadedSprite = getShadedImg(sprite);
+        
+        mipColumns = toColumns(buildMips(getTexels(sprite), size), size);
+        texelCount = countTexels(mipColumns);
+    }
+    
+    /*el sprite de la imagen en path, creado una sola vez por ruta. Las entidades y casillas que usan la misma imagen
+    comparten el sprite en vez de tener cada una su copia de la textura*/
+    public static Sprite load(String path) {
+        return LOADED.computeIfAbsent(path, Sprite::new);
     }
     
     public static final BufferedImage getImage(String path) {
@@ -83,6 +115,100 @@ public class Sprite {
         return shaded;
     }
     
+    private static int[] getTexels(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        return img.getRGB(0, 0, w, h, null, 0, w);
+    }
+    
+    /*crea la cadena de niveles. Cada texel de un nivel es el promedio de 4 texels del anterior, con el color pesado
+    por el alpha para que los bordes transparentes de los sprites no oscurezcan el color*/
+    private static int[][] buildMips(int[] base, int size) {
+        int levels = Integer.numberOfTrailingZeros(size) + 1;
+        int[][] mips = new int[levels][];
+        mips[0] = base;
+        
+        for (int level = 1, s = size / 2; level < levels; level++, s /= 2) {
+            int[] src = mips[level - 1];
+            int[] dst = new int[s * s];
+            int srcSize = s * 2;
+            
+            for (int y = 0; y < s; y++) {
+                for (int x = 0; x < s; x++) {
+                    int i = y * 2 * srcSize + x * 2;
+                    
+                    int a = 0, r = 0, g = 0, b = 0;
+                    for (int k = 0; k < 4; k++) {
+                        int t = src[i + (k & 1) + (k >> 1) * srcSize]; //los 2x2 texels del nivel anterior
+                        int ta = t >>> 24;
+                        a += ta;
+                        r += ((t >> 16) & 0xFF) * ta;
+                        g += ((t >> 8) & 0xFF) * ta;
+                        b += (t & 0xFF) * ta;
+                    }
+                    
+                    if (a > 0) {
+                        r /= a;
+                        g /= a;
+                        b /= a;
+                    }
+                    dst[y * s + x] = (a / 4) << 24 | r << 16 | g << 8 | b;
+                }
+            }
+            mips[level] = dst;
+        }
+        return mips;
+    }
+    
+    //transpone cada nivel para guardarlo columna por columna: el texel (x, y) queda en x * s + y
+    private static int[][] toColumns(int[][] mips, int size) {
+        int[][] levels = new int[mips.length][];
+        for (int level = 0; level < mips.length; level++) {
+            int[] rows = mips[level];
+            int s = size >> level;
+            
+            int[] columns = new int[rows.length];
+            for (int y = 0; y < s; y++) {
+                for (int x = 0; x < s; x++) {
+                    columns[x * s + y] = rows[y * s + x];
+                }
+            }
+            levels[level] = columns;
+        }
+        return levels;
+    }
+    
+    private static int countTexels(int[][] levels) {
+        int count = 0;
+        for (int[] i: levels) count += i.length;
+        return count;
+    }
+    
+    //texels del nivel indicado columna por columna, tiene getSize() >> level texels por lado
+    final int[] getMipColumns(int level) {
+        return mipColumns[level];
+    }
+    
+    final int getLevels() {
+        return mipColumns.length;
+    }
+    
+    final int getTexelCount() {
+        return texelCount;
+    }
+    
+    //lado de la textura completa (nivel 0)
+    public final int getSize() {
+        return size;
+    }
+    
+    //el nivel más pequeño que todavia tiene por lo menos height texels de alto, para una columna de height pixeles
+    final int mipLevel(int height) {
+        int level = 0;
+        while (level < mipColumns.length - 1 && size >> (level + 1) >= height) level++;
+        return level;
+    }
+    
     public static BufferedImage reescale(BufferedImage src, int w, int h) {
         BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = scaled.createGraphics();
@@ -95,6 +221,7 @@ public class Sprite {
     
     //DIBUJO DEL SPRITE
     
+    //column va de 0 a TILE_SIZE - 1 y se escala al ancho de la textura
     public final void drawColumn(Graphics2D g, int column, int x, int y, int w, int h) {
         //dibuja una columna verde si se sale del limite de las texturas
         if (column < 0 || column >= Engine.TILE_SIZE) {
@@ -103,6 +230,12 @@ public class Sprite {
             return;
         }
         
+        drawTexelColumn(g, column * size / Engine.TILE_SIZE, x, y, w, h);
+    }
+    
+    /*igual que drawColumn pero texel es la columna de la imagen (de 0 a getSize()), asi las texturas más grandes que
+    TILE_SIZE se dibujan con todas sus columnas*/
+    final void drawTexelColumn(Graphics2D g, int texel, int x, int y, int w, int h) {
         /*las primeras dos coordenadas indican las esquinas donde se inicia y
         termina a dibujar en el componente del graphics que se le paso.
         Las ultimas dos coordenadas indican las esquinas el segmento de la
@@ -111,30 +244,17 @@ public class Sprite {
             sprite,
             x, y, //primera esquina de dibujo
             x + w, y + h, //segunda esquina de dibujo
-            column, 0, //primera esquina del segmento
-            column + 1, Engine.TILE_SIZE, //segunda esquina del segmento
+            texel, 0, //primera esquina del segmento
+            texel + 1, size, //segunda esquina del segmento
             null
         );
     }
     
+    //dibuja la columna normal y la oscurece pintando la sombra encima, las paredes no tienen partes transparentes
     public final void drawShadedColumn(Graphics2D g, int column, int x, int y, int w, int h) {
-        //dibuja la misma columna verde pero sombreada
-        if (column < 0 || column >= Engine.TILE_SIZE) {
-            g.setColor(Color.GREEN);
-            g.fillRect(x, y, w, h);
-            g.setColor(shadow);
-            g.fillRect(x, y, w, h);
-            return;
-        }
-        
-        g.drawImage(
-            shadedSprite,
-            x, y, //primera esquina de dibujo
-            x + w, y + h, //segunda esquina de dibujo
-            column, 0, //primera esquina del segmento
-            column + 1, Engine.TILE_SIZE, //segunda esquina del segmento
-            null
-        );
+        drawColumn(g, column, x, y, w, h);
+        g.setColor(shadow);
+        g.fillRect(x, y, w, h);
     }
     
     //dibuja toda la imagen
@@ -142,7 +262,9 @@ public class Sprite {
         g.drawImage(sprite, x, y, w, h, null);
     }
     
+    //aqui la sombra no se puede pintar encima porque oscureceria tambien lo que se ve por las partes transparentes
     public final void drawShadedSprite(Graphics2D g, int x, int y, int w, int h) {
+        if (shadedSprite == null) shadedSprite = getShadedImg(sprite);
         g.drawImage(shadedSprite, x, y, w, h, null);
     }
     
@@ -0,0 +1,93 @@
+package RayEngine;
+
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/*los texels de todos los sprites que dibuja un RayCaster en un solo array. El renderizado por software lee siempre
+de este array, asi columnas vecinas que golpean paredes distintas leen de la misma zona de memoria en vez de saltar
+entre arrays repartidos por el heap. Cada RayCaster tiene el suyo, y un sprite se copia al atlas la primera vez
+que se va a dibujar.
+
+Los sprites se guardan con referencias debiles: un sprite que ya nadie usa deja de contar y su espacio se recupera
+la siguiente vez que el atlas se llena. En ese momento los sprites vivos se copian juntos al inicio de un array
+nuevo (con el doble de espacio del que ocupan), sus posiciones cambian y layout() aumenta. El atlas no pasa de
+MAX_TEXELS*/
+final class TextureAtlas {
+
+    static final int MAX_TEXELS = 1 << 28; //1 GB de texels
+
+    private int[] texels = new int[1 << 16];
+    private int used;
+    private int layout;
+
+    //posición de cada nivel de cada sprite que está en el atlas
+    private final WeakHashMap<Sprite, int[]> placed = new WeakHashMap<>();
+
+    //posiciones de los niveles del sprite, si todavia no está en el atlas lo copia
+    int[] offsets(Sprite spr) {
+        int[] offsets = placed.get(spr);
+        if (offsets == null) {
+            int needed = spr.getTexelCount();
+            if (needed > texels.length - used) makeRoom(needed);
+
+            offsets = copy(spr, texels, used);
+            used += needed;
+            placed.put(spr, offsets);
+        }
+        return offsets;
+    }
+
+    //copia los niveles del sprite a dst a partir de start, regresa la posición de cada uno
+    private static int[] copy(Sprite spr, int[] dst, int start) {
+        int[] offsets = new int[spr.getLevels()];
+        for (int level = 0; level < offsets.length; level++) {
+            int[] columns = spr.getMipColumns(level);
+            System.arraycopy(columns, 0, dst, start, columns.length);
+            offsets[level] = start;
+            start += columns.length;
+        }
+        return offsets;
+    }
+
+    //compacta los sprites que siguen vivos en un array con lugar para needed texels más
+    private void makeRoom(int needed) {
+        long live = 0;
+        for (Sprite spr: placed.keySet()) live += spr.getTexelCount();
+
+        long required = live + needed;
+        if (required > MAX_TEXELS) {
+            throw new IllegalStateException("El atlas de texturas está lleno (" + required + " texels)");
+        }
+
+        long capacity = texels.length;
+        while (capacity < required * 2 && capacity < MAX_TEXELS) capacity *= 2;
+        int[] dst = new int[(int) Math.min(capacity, MAX_TEXELS)];
+
+        int start = 0;
+        for (java.util.Map.Entry<Sprite, int[]> i: placed.entrySet()) {
+            Sprite spr = i.getKey();
+            if (spr == null) continue; //el sprite se recolectó mientras se recorria
+            i.setValue(copy(spr, dst, start));
+            start += spr.getTexelCount();
+        }
+
+        texels = dst;
+        used = start;
+        layout++;
+    }
+
+    /*el array actual. Puede cambiar cada vez que se copia un sprite nuevo, el renderizador lo vuelve a pedir despues
+    de copiar los sprites del frame*/
+    int[] texels() {
+        return texels;
+    }
+
+    //aumenta cada vez que los sprites cambian de posición, las posiciones que se obtuvieron antes dejan de servir
+    int layout() {
+        return layout;
+    }
+
+    int size() {
+        return used;
+    }
+}
@@ -0,0 +1,174 @@
+package RayEngine;
+
+import java.util.Arrays;
+
+/*valores de las casillas del mapa, fila por fila. Un int por casilla es demasiado para mapas enormes (un mapa de
+10000 x 10000 serian 400 MB), y casi siempre los valores son pequeños, asi que el ancho de cada casilla se escoge
+segun el rango de valores que hay que guardar: un byte si todos están entre 0 y 255, dos bytes si están entre 0 y
+65535 y un int para cualquier otro caso. Si despues se guarda un valor que no cabe, el mapa cambia a un TileGrid
+más ancho con widen*/
+abstract class TileGrid {
+
+    final int size;
+
+    TileGrid(int size) {
+        this.size = size;
+    }
+
+    abstract int get(int index);
+
+    abstract void set(int index, int value);
+
+    //regresa true si el valor se puede guardar sin cambiar el ancho
+    abstract boolean fits(int value);
+
+    //bytes que ocupa cada casilla
+    abstract int bytesPerTile();
+
+    //el TileGrid más pequeño en el que caben los valores entre min y max
+    static Flat forRange(int size, int min, int max) {
+        if (min >= 0 && max <= 0xFF) return new Bytes(size);
+        if (min >= 0 && max <= 0xFFFF) return new Shorts(size);
+        return new Ints(size);
+    }
+
+    //copia las casillas a un TileGrid en el que también quepa value
+    Flat widen(int value) {
+        Flat wider = value < 0 || this instanceof Shorts ? new Ints(size) : forRange(size, 0, value);
+
+        for (int i = 0; i < size; i++) {
+            wider.set(i, get(i));
+        }
+        return wider;
+    }
+
+    /*TileGrid guardado en un solo array en memoria. Se puede copiar a otro tamaño, lo que usa MapParser al leer mapas
+    de los que no se sabe el tamaño. Los TileGrid de tamaño fijo (como ChunkedTileGrid) no extienden esta clase*/
+    abstract static class Flat extends TileGrid {
+
+        Flat(int size) {
+            super(size);
+        }
+
+        //copia las casillas a un TileGrid del mismo ancho con otro tamaño
+        abstract Flat resize(int size);
+    }
+
+    static final class Bytes extends Flat {
+        private final byte[] data;
+
+        Bytes(int size) {
+            super(size);
+            data = new byte[size];
+        }
+
+        //usa el array recibido sin copiarlo, como data es final cualquier hilo que vea este objeto ve el array ya lleno
+        Bytes(byte[] data) {
+            super(data.length);
+            this.data = data;
+        }
+
+        @Override
+        int get(int index) {
+            return data[index] & 0xFF;
+        }
+
+        @Override
+        void set(int index, int value) {
+            data[index] = (byte) value;
+        }
+
+        @Override
+        boolean fits(int value) {
+            return value >= 0 && value <= 0xFF;
+        }
+
+        @Override
+        int bytesPerTile() {
+            return 1;
+        }
+
+        @Override
+        Flat resize(int size) {
+            return new Bytes(Arrays.copyOf(data, size));
+        }
+    }
+
+    static final class Shorts extends Flat {
+        private final short[] data;
+
+        Shorts(int size) {
+            super(size);
+            data = new short[size];
+        }
+
+        Shorts(short[] data) {
+            super(data.length);
+            this.data = data;
+        }
+
+        @Override
+        int get(int index) {
+            return data[index] & 0xFFFF;
+        }
+
+        @Override
+        void set(int index, int value) {
+            data[index] = (short) value;
+        }
+
+        @Override
+        boolean fits(int value) {
+            return value >= 0 && value <= 0xFFFF;
+        }
+
+        @Override
+        int bytesPerTile() {
+            return 2;
+        }
+
+        @Override
+        Flat resize(int size) {
+            return new Shorts(Arrays.copyOf(data, size));
+        }
+    }
+
+    static final class Ints extends Flat {
+        private final int[] data;
+
+        Ints(int size) {
+            super(size);
+            data = new int[size];
+        }
+
+        Ints(int[] data) {
+            super(data.length);
+            this.data = data;
+        }
+
+        @Override
+        int get(int index) {
+            return data[index];
+        }
+
+        @Override
+        void set(int index, int value) {
+            data[index] = value;
+        }
+
+        @Override
+        boolean fits(int value) {
+            return true;
+        }
+
+        @Override
+        int bytesPerTile() {
+            return 4;
+        }
+
+        @Override
+        Flat resize(int size) {
+            return new Ints(Arrays.copyOf(data, size));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package RayEngine;
+
+import java.util.Arrays;
+
+/*lista de las casillas que marcaron los rayos de un casteo, como rectangulos (fila y columna de inicio y de fin,
+incluidas). Cada franja del casteo en paralelo guarda aqui lo que vieron sus rayos y al terminar se pasa a
+VisibleTiles en un solo hilo. Asi cada franja no necesita un bitset de todo el mapa, y lo que ocupa depende de
+las casillas que cruzaron los rayos y no del tamaño del mapa*/
+final class TileMarks {
+
+    private int[] rects = new int[256]; //4 ints por rectangulo: row0, col0, row1, col1
+    private int size; //ints usados
+
+    void clear() {
+        size = 0;
+    }
+
+    void set(int row, int col) {
+        //rayos vecinos cruzan seguido la misma casilla, no se repite si es la ultima que se marcó
+        if (size > 0 && rects[size - 4] == row && rects[size - 3] == col && rects[size - 2] == row
+                && rects[size - 1] == col) return;
+        setRect(row, col, row, col);
+    }
+
+    void setRect(int row0, int col0, int row1, int col1) {
+        if (size == rects.length) rects = Arrays.copyOf(rects, size * 2);
+        rects[size] = row0;
+        rects[size + 1] = col0;
+        rects[size + 2] = row1;
+        rects[size + 3] = col1;
+        size += 4;
+    }
+
+    //marca todas las casillas guardadas en tiles
+    void applyTo(VisibleTiles tiles) {
+        for (int k = 0; k < size; k += 4) {
+            if (rects[k] == rects[k + 2] && rects[k + 1] == rects[k + 3]) tiles.set(rects[k], rects[k + 1]);
+            else tiles.setRect(rects[k], rects[k + 1], rects[k + 2], rects[k + 3]);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package RayEngine;
+
+import java.util.Arrays;
+
+/*casillas del mapa por las que pasó algún rayo en el ultimo casteo, un bit por casilla (fila * n + columna). Los
+sprites de las entidades que están en casillas que ningun rayo tocó no se pueden ver, porque cualquier columna
+de un sprite que se vea tiene un rayo que cruza el sprite antes de llegar a la pared.
+
+Para limpiarla no se recorre todo el mapa: se guardan los indices de los longs que dejaron de ser 0 y solo esos se
+vuelven a poner en 0, asi el costo depende de lo que se vio y no del tamaño del mapa*/
+final class VisibleTiles {
+
+    private final int m;
+    private final int n;
+    private final long[] bits;
+
+    private int[] touched; //longs que tienen algún bit encendido
+    private int touchedCount;
+
+    VisibleTiles(int m, int n) {
+        this.m = m;
+        this.n = n;
+        bits = new long[(m * n + 63) >>> 6];
+        touched = new int[64];
+    }
+
+    void clear() {
+        for (int k = 0; k < touchedCount; k++) bits[touched[k]] = 0;
+        touchedCount = 0;
+    }
+
+    void set(int row, int col) {
+        int index = row * n + col;
+        int word = index >>> 6;
+        if (bits[word] == 0) touch(word);
+        bits[word] |= 1L << index;
+    }
+
+    //enciende todas las casillas del rectangulo de filas row0 a row1 y columnas col0 a col1 (incluidas)
+    void setRect(int row0, int col0, int row1, int col1) {
+        for (int row = row0; row <= row1; row++) {
+            int from = row * n + col0, to = row * n + col1;
+            int w0 = from >>> 6, w1 = to >>> 6;
+
+            for (int w = w0; w <= w1; w++) {
+                long mask = -1L;
+                if (w == w0) mask &= -1L << from;
+                if (w == w1) mask &= -1L >>> (63 - (to & 63));
+
+                if (bits[w] == 0) touch(w);
+                bits[w] |= mask;
+            }
+        }
+    }
+
+    private void touch(int word) {
+        if (touchedCount == touched.length) touched = Arrays.copyOf(touched, touchedCount * 2);
+        touched[touchedCount++] = word;
+    }
+
+    boolean contains(int row, int col) {
+        if (row < 0 || row >= m || col < 0 || col >= n) return false;
+        int index = row * n + col;
+        return (bits[index >>> 6] & 1L << index) != 0;
+    }
+
+    //si alguna casilla del rectangulo está encendida, las que quedan fuera del mapa no cuentan
+    boolean containsAny(int row0, int col0, int row1, int col1) {
+        row0 = Math.max(row0, 0);
+        col0 = Math.max(col0, 0);
+        row1 = Math.min(row1, m - 1);
+        col1 = Math.min(col1, n - 1);
+
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                int index = row * n + col;
+                if ((bits[index >>> 6] & 1L << index) != 0) return true;
+            }
+        }
+        return false;
+    }
+}